@@ -0,0 +1,186 @@
+package com.concurrent.benchmark;
+
+import com.concurrent.model.Account;
+import com.concurrent.model.AccountMultiverse;
+import com.concurrent.model.AccountMyStm;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 比较三种转账实现的吞吐量和尾延迟
+ *      lock：Account，锁管理员一次性申请两个账户，再按顺序加锁
+ *      myStm：AccountMyStm，自己的STM，余额足够时才转账，先读后写，和multiverse的语义相同
+ *      multiverse：AccountMultiverse，Multiverse框架的STM，余额足够时才转账
+ *      myStmCommute：AccountMyStm，只使用可交换的增量，不检查余额，不会冲突，
+ *          只用来观察可交换操作的收益，不能和上面三种直接比较
+ * 账户数量越少冲突越多，readPercent是查询余额的比例，其余是转账。
+ * 每个线程使用固定种子的随机数选择账户和操作，保证多次运行的负载相同。
+ *
+ * 执行方式：
+ *      mvn -P jmh package
+ *      java -cp target/benchmarks.jar com.concurrent.benchmark.TransferBenchmark
+ * 依次使用1、2、4、8个线程运行，结果以JSON格式保存在target/jmh-transfer-t{线程数}.json。
+ * 也可以直接使用JMH的命令行：java -jar target/benchmarks.jar TransferBenchmark -t 4 -p accounts=2
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class TransferBenchmark {
+
+    private static final int INITIAL_BALANCE = 1_000_000;
+
+    private static final int AMOUNT = 1;
+
+    private static final long SEED = 20210601L;
+
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8};
+
+    /**
+     * 账户数量，2个账户时所有转账都互相冲突
+     */
+    @Param({"2", "16", "1024"})
+    private int accounts;
+
+    /**
+     * 查询余额的百分比
+     */
+    @Param({"0", "50", "90"})
+    private int readPercent;
+
+    private Account[] lockAccounts;
+
+    private AccountMyStm[] myStmAccounts;
+
+    private AccountMultiverse[] multiverseAccounts;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        lockAccounts = new Account[accounts];
+        myStmAccounts = new AccountMyStm[accounts];
+        multiverseAccounts = new AccountMultiverse[accounts];
+        for (int i = 0; i < accounts; i++) {
+            lockAccounts[i] = new Account(i, INITIAL_BALANCE);
+            myStmAccounts[i] = new AccountMyStm(INITIAL_BALANCE);
+            multiverseAccounts[i] = new AccountMultiverse(INITIAL_BALANCE);
+        }
+    }
+
+    /**
+     * 每个线程的操作序列
+     */
+    @State(Scope.Thread)
+    public static class Workload {
+
+        private SplittableRandom random;
+
+        @Setup(Level.Trial)
+        public void setup(ThreadParams threadParams) {
+            random = new SplittableRandom(SEED + threadParams.getThreadIndex());
+        }
+
+        boolean nextIsRead(int readPercent) {
+            return random.nextInt(100) < readPercent;
+        }
+
+        int nextAccount(int accounts) {
+            return random.nextInt(accounts);
+        }
+
+        /**
+         * 选择另一个不同的账户
+         * @param from
+         * @param accounts
+         * @return
+         */
+        int nextTarget(int from, int accounts) {
+            return (from + 1 + random.nextInt(accounts - 1)) % accounts;
+        }
+
+    }
+
+    @Benchmark
+    public int lock(Workload workload) {
+        int from = workload.nextAccount(accounts);
+        Account account = lockAccounts[from];
+        if (workload.nextIsRead(readPercent)) {
+            synchronized (account) {
+                return account.getBalance();
+            }
+        }
+        account.transfer(lockAccounts[workload.nextTarget(from, accounts)], AMOUNT);
+        return from;
+    }
+
+    @Benchmark
+    public int myStm(Workload workload) {
+        int from = workload.nextAccount(accounts);
+        AccountMyStm account = myStmAccounts[from];
+        if (workload.nextIsRead(readPercent)) {
+            return account.queryBalance();
+        }
+        account.transferIfSufficient(myStmAccounts[workload.nextTarget(from, accounts)], AMOUNT);
+        return from;
+    }
+
+    /**
+     * 盲写的增量转账，事务之间没有读写冲突，和其他实现的语义不同
+     * @param workload
+     * @return
+     */
+    @Benchmark
+    public int myStmCommute(Workload workload) {
+        int from = workload.nextAccount(accounts);
+        AccountMyStm account = myStmAccounts[from];
+        if (workload.nextIsRead(readPercent)) {
+            return account.queryBalance();
+        }
+        account.transfer(myStmAccounts[workload.nextTarget(from, accounts)], AMOUNT);
+        return from;
+    }
+
+    @Benchmark
+    public long multiverse(Workload workload) {
+        int from = workload.nextAccount(accounts);
+        AccountMultiverse account = multiverseAccounts[from];
+        if (workload.nextIsRead(readPercent)) {
+            return account.getBalance().atomicGet();
+        }
+        account.transfer(multiverseAccounts[workload.nextTarget(from, accounts)], AMOUNT);
+        return from;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : THREAD_COUNTS) {
+            Options options = new OptionsBuilder()
+                    .include(TransferBenchmark.class.getName() + "\\.")
+                    .threads(threads)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result("target/jmh-transfer-t" + threads + ".json")
+                    .build();
+            new Runner(options).run();
+        }
+    }
+
+}
@@ -60,7 +60,7 @@ public class ThreadState {
         while (true) {
             System.out.println("thread1.getState() = " + thread1.getState());
             System.out.println("Thread.currentThread().getState() = "
-                    + Thread.currentThread().getState() + " mainThreadId = " + Thread.currentThread().getId());
+                    + Thread.currentThread().getState() + " mainThreadId = " + Thread.currentThread().threadId());
             Thread.sleep(1000);
         }
     }
@@ -97,7 +97,7 @@ public class ThreadState {
         @Override
         public void run() {
             while (true) {
-                System.out.println("main thread state = " + thread.getState() + " mainThreadId = " + thread.getId());
+                System.out.println("main thread state = " + thread.getState() + " mainThreadId = " + thread.threadId());
                 try {
                     Thread.sleep(1000);
                 } catch (InterruptedException e) {
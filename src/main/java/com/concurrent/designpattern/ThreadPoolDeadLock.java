@@ -1,8 +1,13 @@
 package com.concurrent.designpattern;
 
+import com.concurrent.tools.MyThreadPool;
+
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 使用线程池过程中，有一种线程死锁的场景。如果提交到相同线程池的任务不是相互独立的，而是有依赖关系的，那么就有可能导致线程死锁。
@@ -18,10 +23,22 @@ import java.util.concurrent.Executors;
  * 解决方案：
  *      最简单粗暴的办法就是将线程池的最大线程数调大，如果能够确定任务的数量不是非常多的话，这个办法也是可行的，
  *      否则这个办法就行不通了。其实这种问题通用的解决方案是为不同的任务创建不同的线程池。
+ *
+ * 检测和补偿：
+ *      共用线程池无法避免时，{@link MyThreadPool}可以检测这种饥饿并输出所有工作线程的调用栈，
+ *      再临时增加补偿线程执行积压的L2任务，服务变慢但不会冻结，见{@link #detectAndCompensate()}。
+ *      等待子任务时使用MyThreadPool.managedBlock()，阻塞之前就增加补偿线程，不需要等检测周期，见{@link #managedBlock()}。
  */
 public class ThreadPoolDeadLock {
 
     public static void main(String[] args) throws Exception {
+        detectAndCompensate();
+        managedBlock();
+        // 线程死锁，永远无法结束
+        deadLock();
+    }
+
+    private static void deadLock() throws Exception {
         // L1、L2阶段共用的线程池，实际项目中不要使用Executors工具类
         ExecutorService executorService = Executors.newFixedThreadPool(2);
         CountDownLatch cdl1 = new CountDownLatch(2);
@@ -54,4 +71,72 @@ public class ThreadPoolDeadLock {
         executorService.shutdown();
     }
 
+    /**
+     * 饥饿检测：L1任务仍然直接await()，检测线程发现所有工作线程都在等待而队列中还有任务，输出调用栈并增加补偿线程
+     * @throws Exception
+     */
+    private static void detectAndCompensate() throws Exception {
+        MyThreadPool pool = new MyThreadPool(2, new LinkedBlockingQueue<>());
+        pool.setMaxCompensation(2);
+        pool.enableStarvationDetection(500, TimeUnit.MILLISECONDS, System.err::println);
+        CountDownLatch cdl1 = new CountDownLatch(2);
+        for (int i = 0; i < 2; i++) {
+            pool.execute(() -> {
+                CountDownLatch cdl2 = new CountDownLatch(2);
+                try {
+                    for (int j = 0; j < 2; j++) {
+                        pool.execute(cdl2::countDown);
+                    }
+                    cdl2.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                cdl1.countDown();
+            });
+        }
+        cdl1.await();
+        System.out.println("end, starvation detected " + pool.getStarvationCount() + " times");
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * managedBlock：等待L2任务之前就增加补偿线程
+     * @throws Exception
+     */
+    private static void managedBlock() throws Exception {
+        MyThreadPool pool = new MyThreadPool(2, new LinkedBlockingQueue<>());
+        pool.setMaxCompensation(2);
+        CountDownLatch cdl1 = new CountDownLatch(2);
+        for (int i = 0; i < 2; i++) {
+            pool.execute(() -> {
+                CountDownLatch cdl2 = new CountDownLatch(2);
+                try {
+                    for (int j = 0; j < 2; j++) {
+                        pool.execute(cdl2::countDown);
+                    }
+                    MyThreadPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                        @Override
+                        public boolean block() throws InterruptedException {
+                            cdl2.await();
+                            return true;
+                        }
+
+                        @Override
+                        public boolean isReleasable() {
+                            return cdl2.getCount() == 0;
+                        }
+                    });
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                cdl1.countDown();
+            });
+        }
+        cdl1.await();
+        System.out.println("end");
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.SECONDS);
+    }
+
 }
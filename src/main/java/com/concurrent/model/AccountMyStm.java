@@ -1,7 +1,7 @@
 package com.concurrent.model;
 
 import com.concurrent.tools.mystm.MyStmUtils;
-import com.concurrent.tools.mystm.TxnRef;
+import com.concurrent.tools.mystm.TxnInt;
 import lombok.Data;
 
 /**
@@ -10,19 +10,71 @@ import lombok.Data;
 @Data
 public class AccountMyStm {
 
-    private TxnRef<Integer> balance;
+    /**
+     * 余额，使用基本类型的TxnInt，转账时不需要装箱
+     */
+    private TxnInt balance;
 
     public AccountMyStm(int balance) {
-        this.balance = new TxnRef<>(balance);
+        this.balance = new TxnInt(balance);
     }
 
+    /**
+     * 转账，只使用可交换的增量操作，不读取余额，
+     * 多个事务同时向同一个账户转入或者转出都不会互相冲突
+     * @param target
+     * @param amt
+     */
     public void transfer(AccountMyStm target, int amt) {
         MyStmUtils.atomic((txn) -> {
-            Integer from = balance.getValue(txn);
-            balance.setValue(from - amt, txn);
-            Integer to = target.balance.getValue(txn);
-            target.balance.setValue(to + amt, txn);
+            balance.increment(-amt, txn);
+            target.balance.increment(amt, txn);
         });
     }
 
+    /**
+     * 余额足够时才转账，和AccountMultiverse.transfer()的语义相同：先读取余额再写入，
+     * 同时转出同一个账户的事务会互相冲突，提交校验失败后重试
+     * @param target
+     * @param amt
+     */
+    public void transferIfSufficient(AccountMyStm target, int amt) {
+        MyStmUtils.atomic((txn) -> {
+            int current = balance.getValue(txn);
+            if (current > amt) {
+                balance.setValue(current - amt, txn);
+                target.balance.setValue(target.balance.getValue(txn) + amt, txn);
+            }
+        });
+    }
+
+    /**
+     * 存款
+     * @param amt
+     */
+    public void deposit(int amt) {
+        MyStmUtils.atomic((txn) -> balance.increment(amt, txn));
+    }
+
+    /**
+     * 取款，余额不足时阻塞，直到其他事务存入足够的金额
+     * @param amt
+     */
+    public void withdraw(int amt) {
+        MyStmUtils.atomic((txn) -> {
+            if (balance.getValue(txn) < amt) {
+                txn.retry();
+            }
+            balance.increment(-amt, txn);
+        });
+    }
+
+    /**
+     * 查询余额，只读取一个数据，不需要事务，不加锁也不需要提交校验
+     * @return
+     */
+    public int queryBalance() {
+        return balance.atomicGet();
+    }
+
 }
@@ -1,6 +1,8 @@
 package com.concurrent.tools;
 
 import com.concurrent.model.AccountMyStm;
+import com.concurrent.tools.mystm.MyStmUtils;
+import com.concurrent.tools.mystm.StmStatisticsSnapshot;
 
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.CountDownLatch;
@@ -56,9 +58,15 @@ public class MyStmExample {
         executor2.shutdown();
 
         cdl.await();
-        System.out.println("a1.balance = " + a1.getBalance().getCurRef().getValue()
-                + ", a2.balance = " + a2.getBalance().getCurRef().getValue()
-                + ", a3.balance = "+ a3.getBalance().getCurRef().getValue());
+        System.out.println("a1.balance = " + a1.queryBalance()
+                + ", a2.balance = " + a2.queryBalance()
+                + ", a3.balance = "+ a3.queryBalance());
+
+        StmStatisticsSnapshot stats = MyStmUtils.getStatistics().snapshot();
+        System.out.println("commits = " + stats.getCommits()
+                + ", aborts = " + stats.getAborts()
+                + ", p99 latency = " + stats.getCommitLatencyPercentileNanos(99) + "ns"
+                + ", hot refs = " + stats.getHotRefs());
     }
 
 }
@@ -1,57 +1,1442 @@
 package com.concurrent.tools;
 
-import lombok.SneakyThrows;
+import com.concurrent.tools.mypool.BatchBlockingQueue;
+import com.concurrent.tools.mypool.ExecutorMetrics;
+import com.concurrent.tools.mypool.PrioritizedTask;
+import com.concurrent.tools.mypool.PriorityDeadlineQueue;
+import com.concurrent.tools.mypool.WorkStealingDeque;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.LinkedTransferQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 /**
  * 简版线程池
  *      目前业界线程池的设计，普遍采用的都是生产者 - 消费者模式，Java线程池也是。
  *      线程池的使用方是生产者，线程池本身是消费者。
+ *
+ * 工作窃取模式：
+ *      所有工作线程共用一个阻塞队列时，队列的锁在任务很短、线程很多时会成为瓶颈。
+ *      工作窃取模式下每个工作线程有自己的双端队列，工作线程提交的任务放入自己的队列，不需要加锁；
+ *      自己的队列空了再从其他线程的队列顶部窃取，最后才从共享队列中获取外部提交的任务，与ForkJoinPool的思路相同。
+ *
+ * 生命周期：
+ *      RUNNING -> SHUTDOWN：shutdown()之后不再接受新任务，已经提交的任务执行完后工作线程退出；
+ *      RUNNING/SHUTDOWN -> STOP：shutdownNow()中断所有工作线程，返回还没有执行的任务；
+ *      所有工作线程退出后进入TERMINATED，awaitTermination()返回。
+ *      任务抛出异常时工作线程退出，由一个新的工作线程接替它的位置(和ThreadPoolExecutor一样)，线程池不会越来越小。
+ *
+ * 弹性线程数：
+ *      工作线程按需创建，不超过corePoolSize时每次提交都创建一个；
+ *      之后没有空闲线程，并且等待的任务数超过growthQueueDepth或者新任务预计的排队时间超过growthLatency时，继续创建，直到maximumPoolSize。
+ *      ThreadPoolExecutor只在队列满时才创建非核心线程，使用LinkedBlockingQueue这样的无界队列时永远不会超过核心线程数，这里不依赖队列是否有界。
+ *      超过corePoolSize的线程空闲keepAliveTime后退出，这些参数都可以在运行时修改。
+ *
+ * 批量提交和批量获取：
+ *      任务很小时每个任务一次入队加锁、一次出队加锁的开销占了大头。
+ *      executeAll()批量提交，队列是{@link BatchBlockingQueue}时一次加锁放入整批任务；
+ *      工作线程通过drainTo()一次加锁取出最多batchSize个任务，放在自己的双端队列中依次执行。
+ *      工作窃取模式下默认开启，囤积的任务可以被空闲线程窃取，只受batchSize限制。
+ *      共享队列模式下默认不批量获取：空闲线程阻塞在共享队列上，看不到其他线程囤积的任务，一个慢任务会挡住同一批的其余任务。
+ *      通过setBatchSize()开启后，每次最多取出平均每个线程应得的份额，线程从共享队列取任务之前也会先窃取其他线程囤积的任务，
+ *      新创建的线程(包括补偿线程)同样可以执行它们。
+ *
+ * 饥饿死锁检测和补偿：
+ *      任务在工作线程中等待提交到同一个线程池的子任务时(见designpattern.ThreadPoolDeadLock)，所有工作线程都阻塞，
+ *      子任务在队列中永远等不到线程，线程池"冻结"，监控上只能看到队列积压。
+ *      enableStarvationDetection()启动一个守护线程定期检查：队列有积压、没有空闲线程、所有工作线程都处于等待状态、
+ *      一个周期内没有任务执行完，就认为发生了饥饿，输出所有工作线程的调用栈。
+ *      setMaxCompensation()之后，检测到饥饿时临时增加超过maximumPoolSize的补偿线程执行积压的任务，积压消除后补偿线程退出，宁可降级也不冻结。
+ *      已知会阻塞的等待可以通过managedBlock()执行，和ForkJoinPool.managedBlock()一样在阻塞之前就补偿，不需要等检测周期。
+ *
+ * 优先级和截止时间：
+ *      使用{@link PriorityDeadlineQueue}时，共享队列按{@link PrioritizedTask}的优先级出队，同一优先级内截止时间早的先出队，
+ *      在线请求不会排在批处理任务后面。这时默认不批量获取，否则工作线程囤积的低优先级任务会挡住之后到达的高优先级任务。
+ *      工作窃取模式下工作线程提交的子任务仍然放入自己的双端队列，不参与排序。
+ *      超过截止时间还没有开始执行的任务在执行之前丢弃，不计入完成数，见getExpiredTaskCount()。
+ *
+ * 指标：
+ *      enableMetrics()之后提交的任务由{@link ExecutorMetrics}包装，按任务类型记录排队时间和执行时间的直方图，
+ *      以及拒绝次数、线程数、活跃线程数和队列长度，可以读取快照或者注册为MXBean。
  */
 public class MyThreadPool {
 
     /**
-     * 利用阻塞队列实现生产者-消费者模式
+     * 工作窃取模式下，每执行这么多个本地任务优先检查一次共享队列，避免外部提交的任务饥饿
      */
-    private BlockingQueue<Runnable> workQueue;
+    private static final int EXTERNAL_POLL_INTERVAL = 64;
 
-    private List<WorkerThread> threadList;
+    /**
+     * 默认的空闲线程存活时间
+     */
+    private static final long DEFAULT_KEEP_ALIVE_SECONDS = 60L;
+
+    /**
+     * 默认每次从共享队列最多取出的任务数
+     */
+    private static final int DEFAULT_BATCH_SIZE = 16;
+
+    /**
+     * 饥饿检测输出的最大栈深度
+     */
+    private static final int MAX_REPORTED_FRAMES = 16;
+
+    private static final int RUNNING = 0;
+    private static final int SHUTDOWN = 1;
+    private static final int STOP = 2;
+    private static final int TERMINATED = 3;
+
+    /**
+     * 利用阻塞队列实现生产者-消费者模式，工作窃取模式下只保存外部线程提交的任务
+     */
+    private final BlockingQueue<Runnable> workQueue;
+
+    /**
+     * 工作线程，写时复制：增减线程时在mainLock中复制数组，窃取时直接遍历当前数组
+     */
+    private volatile WorkerThread[] threadList = new WorkerThread[0];
+
+    private final ReentrantLock mainLock = new ReentrantLock();
+
+    /**
+     * 是否是工作窃取模式
+     */
+    private final boolean workStealing;
+
+    /**
+     * 工作窃取模式下空闲等待的线程
+     */
+    private final ConcurrentLinkedQueue<WorkerThread> idleWorkers = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 空闲等待任务的线程数
+     */
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    /**
+     * 线程池状态
+     */
+    private final AtomicInteger state = new AtomicInteger(RUNNING);
+
+    /**
+     * 工作线程数，线程决定退出时就减少，创建线程之前就增加
+     */
+    private final AtomicInteger workerCount = new AtomicInteger();
+
+    private final CountDownLatch terminated = new CountDownLatch(1);
+
+    /**
+     * 已经退出的工作线程执行完的任务数，由mainLock保护
+     */
+    private long finishedTaskCount;
+
+    /**
+     * 抛出异常的任务数
+     */
+    private final LongAdder failedTaskCount = new LongAdder();
+
+    private volatile int corePoolSize;
+
+    private volatile int maximumPoolSize;
+
+    private volatile long keepAliveNanos;
+
+    /**
+     * 没有空闲线程时，等待的任务数超过该值就增加工作线程
+     */
+    private volatile int growthQueueDepth;
+
+    /**
+     * 没有空闲线程时，新任务预计的排队时间超过该值就增加工作线程；0表示不按延迟增长
+     */
+    private volatile long growthLatencyNanos;
+
+    /**
+     * 最近一次取出任务的时间，只在按延迟增长时记录
+     */
+    private volatile long lastDequeueNanos = System.nanoTime();
+
+    /**
+     * 取出任务的平均间隔(指数移动平均)，乘以等待的任务数就是新任务预计的排队时间。
+     * 多个线程并发更新时会丢失个别样本，对估算没有影响
+     */
+    private volatile long dequeueIntervalNanos;
+
+    /**
+     * 每次从共享队列最多取出的任务数，1表示不批量获取
+     */
+    private volatile int batchSize;
+
+    /**
+     * 在managedBlock()中阻塞的工作线程数
+     */
+    private final AtomicInteger blockedCount = new AtomicInteger();
+
+    /**
+     * 当前允许超过maximumPoolSize的补偿线程数
+     */
+    private final AtomicInteger compensation = new AtomicInteger();
+
+    /**
+     * 最多同时存在的补偿线程数，0表示不补偿
+     */
+    private volatile int maxCompensation;
+
+    /**
+     * 检测到饥饿的次数
+     */
+    private final LongAdder starvationCount = new LongAdder();
+
+    /**
+     * 超过截止时间被丢弃的任务数
+     */
+    private final LongAdder expiredTaskCount = new LongAdder();
+
+    /**
+     * 饥饿检测线程，由mainLock保护
+     */
+    private StarvationWatchdog watchdog;
+
+    /**
+     * 为null时不记录指标，提交任务时不需要包装
+     */
+    private volatile ExecutorMetrics metrics;
 
     public MyThreadPool(int poolSize, BlockingQueue<Runnable> workQueue) {
-        this.workQueue = workQueue;
-        this.threadList = new ArrayList<>(poolSize);
-        for (int i = 0; i < poolSize; i++) {
-            WorkerThread workThread = new WorkerThread();
-            workThread.start();
-            threadList.add(workThread);
+        this(poolSize, workQueue, false);
+    }
+
+    /**
+     * 固定线程数
+     * @param poolSize
+     * @param workQueue 工作窃取模式下只保存外部线程提交的任务，应该使用无锁的队列，例如LinkedTransferQueue
+     * @param workStealing 是否使用工作窃取模式
+     */
+    public MyThreadPool(int poolSize, BlockingQueue<Runnable> workQueue, boolean workStealing) {
+        this(poolSize, poolSize, DEFAULT_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, workQueue, workStealing);
+    }
+
+    /**
+     * @param corePoolSize 核心线程数，可以为0
+     * @param maximumPoolSize 最大线程数
+     * @param keepAliveTime 超过核心线程数的线程空闲多久后退出
+     * @param unit
+     * @param workQueue
+     * @param workStealing
+     */
+    public MyThreadPool(int corePoolSize, int maximumPoolSize, long keepAliveTime, TimeUnit unit,
+                        BlockingQueue<Runnable> workQueue, boolean workStealing) {
+        if (corePoolSize < 0 || maximumPoolSize < 1 || maximumPoolSize < corePoolSize || keepAliveTime <= 0) {
+            throw new IllegalArgumentException();
+        }
+        if (workQueue == null) {
+            throw new NullPointerException();
         }
+        this.corePoolSize = corePoolSize;
+        this.maximumPoolSize = maximumPoolSize;
+        this.keepAliveNanos = unit.toNanos(keepAliveTime);
+        this.workQueue = workQueue;
+        this.workStealing = workStealing;
+        // 共享队列模式下阻塞在队列上的空闲线程看不到其他线程囤积的任务
+        this.batchSize = workStealing && !(workQueue instanceof PriorityDeadlineQueue) ? DEFAULT_BATCH_SIZE : 1;
+    }
+
+    /**
+     * 创建工作窃取模式的线程池
+     * @param parallelism 工作线程数
+     * @return
+     */
+    public static MyThreadPool newWorkStealingPool(int parallelism) {
+        return new MyThreadPool(parallelism, new LinkedTransferQueue<>(), true);
+    }
+
+    /**
+     * 创建按优先级和截止时间调度的线程池，提交的任务用{@link PrioritizedTask}包装
+     * @param poolSize 工作线程数
+     * @return
+     */
+    public static MyThreadPool newPriorityPool(int poolSize) {
+        return new MyThreadPool(poolSize, new PriorityDeadlineQueue());
     }
 
     /**
      * 提交任务
+     *      工作窃取模式下，本线程池的工作线程提交的任务放入自己的双端队列，
+     *      shutdown()之后正在执行的任务仍然可以提交子任务，由提交的线程自己执行完
      * @param command
      * @throws InterruptedException
+     * @throws RejectedExecutionException 线程池已经关闭
      */
     public void execute(Runnable command) throws InterruptedException {
-        workQueue.put(command);
+        if (command == null) {
+            throw new NullPointerException();
+        }
+        ExecutorMetrics m = metrics;
+        if (m != null) {
+            command = m.wrap(command);
+        }
+        if (workStealing) {
+            Thread current = Thread.currentThread();
+            if (current instanceof WorkerThread && ((WorkerThread) current).getPool() == this) {
+                if (state.get() >= STOP) {
+                    throw reject("pool is stopped");
+                }
+                WorkStealingDeque deque = ((WorkerThread) current).deque;
+                deque.push(command);
+                signalWork();
+                growIfNeeded(deque);
+                return;
+            }
+        }
+        if (state.get() != RUNNING) {
+            throw reject("pool is shutdown");
+        }
+        if (!workQueue.offer(command)) {
+            // 队列满时先尝试增加工作线程，仍然满再阻塞，阻塞期间线程池可能已经关闭，工作线程可能已经退出
+            addWorker(false);
+            workQueue.put(command);
+        }
+        if (state.get() != RUNNING && workQueue.remove(command)) {
+            throw reject("pool is shutdown");
+        }
+        if (workStealing) {
+            signalWork();
+        }
+        growIfNeeded(null);
+    }
+
+    /**
+     * 批量提交任务
+     *      队列是{@link BatchBlockingQueue}时一次加锁放入整批任务，否则逐个入队；
+     *      工作窃取模式下，本线程池的工作线程提交的任务直接放入自己的双端队列
+     * @param commands
+     * @throws InterruptedException
+     * @throws RejectedExecutionException 线程池已经关闭，这时还没有执行的任务已经从队列中移除
+     */
+    public void executeAll(Collection<? extends Runnable> commands) throws InterruptedException {
+        for (Runnable command : commands) {
+            if (command == null) {
+                throw new NullPointerException();
+            }
+        }
+        int n = commands.size();
+        if (n == 0) {
+            return;
+        }
+        ExecutorMetrics m = metrics;
+        if (m != null) {
+            List<Runnable> wrapped = new ArrayList<>(n);
+            for (Runnable command : commands) {
+                wrapped.add(m.wrap(command));
+            }
+            commands = wrapped;
+        }
+        if (workStealing) {
+            Thread current = Thread.currentThread();
+            if (current instanceof WorkerThread && ((WorkerThread) current).getPool() == this) {
+                if (state.get() >= STOP) {
+                    throw reject("pool is stopped");
+                }
+                WorkStealingDeque deque = ((WorkerThread) current).deque;
+                for (Runnable command : commands) {
+                    deque.push(command);
+                }
+                signalWork(n);
+                for (int i = 0; i < n && growIfNeeded(deque); i++) {
+                    // 按负载继续增加工作线程
+                }
+                return;
+            }
+        }
+        if (state.get() != RUNNING) {
+            throw reject("pool is shutdown");
+        }
+        if (workQueue instanceof BatchBlockingQueue) {
+            BatchBlockingQueue<Runnable> queue = (BatchBlockingQueue<Runnable>) workQueue;
+            int added = queue.offerAll(commands);
+            if (added < n) {
+                // 队列满时先尝试增加工作线程，再阻塞放入剩下的任务
+                addWorker(false);
+                queue.putAll(new ArrayList<>(commands).subList(added, n));
+            }
+        } else {
+            for (Runnable command : commands) {
+                if (!workQueue.offer(command)) {
+                    addWorker(false);
+                    workQueue.put(command);
+                }
+            }
+        }
+        if (state.get() != RUNNING) {
+            boolean removed = false;
+            for (Runnable command : commands) {
+                removed |= workQueue.remove(command);
+            }
+            if (removed) {
+                throw reject("pool is shutdown");
+            }
+        }
+        if (workStealing) {
+            signalWork(n);
+        }
+        for (int i = 0; i < n && growIfNeeded(null); i++) {
+            // 按负载继续增加工作线程
+        }
+    }
+
+    private RejectedExecutionException reject(String message) {
+        ExecutorMetrics m = metrics;
+        if (m != null) {
+            m.recordRejection();
+        }
+        return new RejectedExecutionException(message);
+    }
+
+    /**
+     * 提交任务之后根据负载决定是否增加工作线程
+     * @param deque 工作窃取模式下提交到的双端队列，提交到共享队列时为null
+     * @return 是否增加了工作线程
+     */
+    private boolean growIfNeeded(WorkStealingDeque deque) {
+        int wc = workerCount.get();
+        if (wc < corePoolSize) {
+            return addWorker(true);
+        }
+        if (wc == 0) {
+            // 核心线程数为0时至少要有一个线程
+            return addWorker(false);
+        }
+        if (wc >= maximumPoolSize || idleCount.get() > 0) {
+            return false;
+        }
+        // LinkedTransferQueue的size()需要遍历，只在确实可以增长时才计算
+        int depth = deque != null ? deque.size() : workQueue.size();
+        if (depth > growthQueueDepth) {
+            return addWorker(false);
+        }
+        long latency = growthLatencyNanos;
+        if (latency > 0 && depth > 0) {
+            // 所有线程都卡住时取任务的间隔会一直变大，也要算进去
+            long expectedWait = Math.max(System.nanoTime() - lastDequeueNanos, depth * dequeueIntervalNanos);
+            if (expectedWait > latency) {
+                return addWorker(false);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 增加一个工作线程
+     * @param core 是否以核心线程数为上限
+     * @return
+     */
+    private boolean addWorker(boolean core) {
+        while (true) {
+            int s = state.get();
+            // SHUTDOWN之后只为执行队列中剩下的任务创建线程
+            if (s >= STOP || (s == SHUTDOWN && workQueue.isEmpty())) {
+                return false;
+            }
+            int wc = workerCount.get();
+            if (wc >= (core ? corePoolSize : maximumWorkers())) {
+                return false;
+            }
+            if (workerCount.compareAndSet(wc, wc + 1)) {
+                break;
+            }
+        }
+        WorkerThread worker = new WorkerThread(new WorkStealingDeque());
+        replaceWorker(null, worker);
+        worker.start();
+        return true;
+    }
+
+    /**
+     * 线程数上限，包括补偿线程
+     * @return
+     */
+    private int maximumWorkers() {
+        return maximumPoolSize + compensation.get();
+    }
+
+    /**
+     * 修改工作线程数组
+     * @param old 要移除的线程，为null时只添加
+     * @param replacement 要添加的线程，为null时只移除
+     */
+    private void replaceWorker(WorkerThread old, WorkerThread replacement) {
+        mainLock.lock();
+        try {
+            if (old != null) {
+                finishedTaskCount += old.completedTasks;
+            }
+            WorkerThread[] ws = threadList;
+            int i = old == null ? -1 : Arrays.asList(ws).indexOf(old);
+            WorkerThread[] copy;
+            if (i >= 0 && replacement != null) {
+                copy = ws.clone();
+                copy[i] = replacement;
+            } else if (i >= 0) {
+                copy = new WorkerThread[ws.length - 1];
+                System.arraycopy(ws, 0, copy, 0, i);
+                System.arraycopy(ws, i + 1, copy, i, ws.length - i - 1);
+            } else if (replacement != null) {
+                copy = Arrays.copyOf(ws, ws.length + 1);
+                copy[ws.length] = replacement;
+            } else {
+                return;
+            }
+            threadList = copy;
+        } finally {
+            mainLock.unlock();
+        }
+    }
+
+    public boolean isWorkStealing() {
+        return workStealing;
+    }
+
+    /**
+     * 有空闲线程时唤醒一个
+     *      提交任务时先发布任务再检查空闲线程，空闲线程先登记再检查任务，两边都是volatile读写，所以不会丢失唤醒
+     */
+    private void signalWork() {
+        if (idleCount.get() == 0) {
+            return;
+        }
+        WorkerThread idle = idleWorkers.poll();
+        if (idle != null) {
+            idleCount.decrementAndGet();
+            LockSupport.unpark(idle);
+        }
+    }
+
+    /**
+     * 批量提交后最多唤醒n个空闲线程
+     * @param n
+     */
+    private void signalWork(int n) {
+        for (int i = 0; i < n && idleCount.get() > 0; i++) {
+            signalWork();
+        }
+    }
+
+    /**
+     * 唤醒所有空闲线程，让它们重新检查状态和线程数
+     */
+    private void wakeIdleWorkers() {
+        for (WorkerThread worker : threadList) {
+            if (workStealing) {
+                // 先修改状态再唤醒，还没有阻塞的线程也不会再阻塞
+                LockSupport.unpark(worker);
+            } else if (worker.idle && worker.runLock.tryLock()) {
+                // 只中断阻塞在队列上的线程；执行任务期间持有runLock，读到idle之后刚取到任务的线程要等这次中断发出才能开始执行，
+                // 拿到锁之后会清除它，不影响任务
+                try {
+                    worker.interrupt();
+                } finally {
+                    worker.runLock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * 关闭线程池，不再接受新任务，已经提交的任务会执行完，不等待执行完成
+     */
+    public void shutdown() {
+        if (advanceState(SHUTDOWN)) {
+            wakeIdleWorkers();
+        }
+        // 核心线程数为0时可能已经没有工作线程了
+        if (workerCount.get() == 0) {
+            addWorker(false);
+        }
+        tryTerminate();
+    }
+
+    /**
+     * 立即关闭线程池，中断所有工作线程，正在执行的任务需要响应中断才能尽快结束。
+     * 工作线程正在批量取出的任务不在返回值中，由工作线程执行完，任务不会丢失
+     * @return 还没有执行的任务
+     */
+    public List<Runnable> shutdownNow() {
+        advanceState(STOP);
+        for (WorkerThread worker : threadList) {
+            worker.interrupt();
+        }
+        List<Runnable> tasks = drainQueue();
+        tryTerminate();
+        return tasks;
+    }
+
+    /**
+     * 取出所有还没有执行的任务，包括每个工作线程的双端队列中的任务
+     * @return
+     */
+    private List<Runnable> drainQueue() {
+        List<Runnable> tasks = new ArrayList<>();
+        workQueue.drainTo(tasks);
+        for (WorkerThread worker : threadList) {
+            Runnable task;
+            while ((task = worker.deque.steal()) != null) {
+                tasks.add(task);
+            }
+        }
+        // DelayQueue之类的队列drainTo时可能取不完
+        if (!workQueue.isEmpty()) {
+            for (Runnable task : workQueue.toArray(new Runnable[0])) {
+                if (workQueue.remove(task)) {
+                    tasks.add(task);
+                }
+            }
+        }
+        // 返回提交时的任务，去掉指标的包装
+        tasks.replaceAll(ExecutorMetrics::unwrap);
+        return tasks;
+    }
+
+    /**
+     * 等待所有工作线程退出
+     * @param timeout
+     * @param unit
+     * @return 超时返回false
+     * @throws InterruptedException
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
+
+    public boolean isShutdown() {
+        return state.get() >= SHUTDOWN;
+    }
+
+    public boolean isTerminated() {
+        return state.get() == TERMINATED;
+    }
+
+    /**
+     * 状态只能向后推进
+     * @param target
+     * @return 是否由当前调用推进了状态
+     */
+    private boolean advanceState(int target) {
+        while (true) {
+            int s = state.get();
+            if (s >= target) {
+                return false;
+            }
+            if (state.compareAndSet(s, target)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 已经关闭并且所有工作线程都已退出时进入TERMINATED
+     */
+    private void tryTerminate() {
+        int s = state.get();
+        if (s == RUNNING || s == TERMINATED || workerCount.get() != 0) {
+            return;
+        }
+        if (s == SHUTDOWN && !workQueue.isEmpty()) {
+            return;
+        }
+        if (advanceState(TERMINATED)) {
+            terminated.countDown();
+        }
+    }
+
+    /**
+     * 工作线程退出
+     *      任务抛出异常导致退出时，只要线程池没有STOP，就创建新的工作线程接替它，继承它的双端队列
+     * @param worker
+     * @param completedAbruptly
+     */
+    private void workerExit(WorkerThread worker, boolean completedAbruptly) {
+        if (completedAbruptly) {
+            failedTaskCount.increment();
+        }
+        if (completedAbruptly && state.get() < STOP) {
+            // 接替的线程直接占用退出线程的计数
+            WorkerThread replacement = new WorkerThread(worker.deque);
+            replaceWorker(worker, replacement);
+            replacement.start();
+            return;
+        }
+        if (completedAbruptly) {
+            workerCount.decrementAndGet();
+        }
+        replaceWorker(worker, null);
+        // 最后一个线程空闲退出的同时可能有任务刚刚入队
+        if (state.get() < STOP && workerCount.get() == 0 && !workQueue.isEmpty()) {
+            addWorker(false);
+        }
+        tryTerminate();
+    }
+
+    /**
+     * 执行可能长时间阻塞的等待，例如在任务中等待提交到同一个线程池的子任务
+     *      调用线程是工作线程时，如果没有空闲线程并且还有等待执行的任务，先增加一个补偿线程再阻塞，阻塞结束后收回。
+     *      补偿线程数不超过maxCompensation，为0时只记录阻塞的线程数。不是工作线程调用时直接阻塞
+     * @param blocker 和ForkJoinPool使用同一个接口
+     * @throws InterruptedException
+     */
+    public static void managedBlock(ForkJoinPool.ManagedBlocker blocker) throws InterruptedException {
+        if (blocker == null) {
+            throw new NullPointerException();
+        }
+        Thread current = Thread.currentThread();
+        if (current instanceof WorkerThread) {
+            ((WorkerThread) current).getPool().awaitBlocker(blocker);
+        } else {
+            block(blocker);
+        }
+    }
+
+    private static void block(ForkJoinPool.ManagedBlocker blocker) throws InterruptedException {
+        while (!blocker.isReleasable() && !blocker.block()) {
+            // 还不能继续，再次阻塞
+        }
+    }
+
+    private void awaitBlocker(ForkJoinPool.ManagedBlocker blocker) throws InterruptedException {
+        if (blocker.isReleasable()) {
+            return;
+        }
+        blockedCount.incrementAndGet();
+        boolean compensated = tryCompensate();
+        try {
+            block(blocker);
+        } finally {
+            blockedCount.decrementAndGet();
+            if (compensated) {
+                releaseCompensation(1);
+            }
+        }
+    }
+
+    /**
+     * 没有空闲线程并且还有等待执行的任务时，增加一个可以超过maximumPoolSize的补偿线程
+     * @return 是否增加了补偿线程
+     */
+    private boolean tryCompensate() {
+        if (idleCount.get() > 0 || getQueueSize() == 0) {
+            return false;
+        }
+        while (true) {
+            int c = compensation.get();
+            if (c >= maxCompensation) {
+                return false;
+            }
+            if (compensation.compareAndSet(c, c + 1)) {
+                break;
+            }
+        }
+        if (addWorker(false)) {
+            return true;
+        }
+        compensation.decrementAndGet();
+        return false;
+    }
+
+    /**
+     * 收回补偿，多出的线程空闲时退出
+     * @param n
+     */
+    private void releaseCompensation(int n) {
+        compensation.addAndGet(-n);
+        if (workerCount.get() > maximumWorkers()) {
+            wakeIdleWorkers();
+        }
+    }
+
+    /**
+     * 开启饥饿检测，线程池终止时检测线程自动退出
+     * @param period 检测周期，一个周期内没有任务执行完才可能判定为饥饿，应该大于任务正常的阻塞时间，否则会误报
+     * @param unit
+     * @param listener 接收饥饿时所有工作线程的状态和调用栈，为null时只计数
+     */
+    public void enableStarvationDetection(long period, TimeUnit unit, Consumer<String> listener) {
+        if (period <= 0) {
+            throw new IllegalArgumentException();
+        }
+        mainLock.lock();
+        try {
+            if (watchdog != null) {
+                return;
+            }
+            watchdog = new StarvationWatchdog(unit.toNanos(period), listener);
+            watchdog.start();
+        } finally {
+            mainLock.unlock();
+        }
+    }
+
+    /**
+     * 开启指标记录，之后提交的任务会被包装，记录排队时间和执行时间
+     * @return 多次调用返回同一个对象
+     */
+    public ExecutorMetrics enableMetrics() {
+        mainLock.lock();
+        try {
+            if (metrics == null) {
+                metrics = new ExecutorMetrics(this::getPoolSize, this::getActiveCount, this::getQueueSize);
+            }
+            return metrics;
+        } finally {
+            mainLock.unlock();
+        }
+    }
+
+    /**
+     * @return 没有开启指标记录时返回null
+     */
+    public ExecutorMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 当前的工作线程数
+     * @return
+     */
+    public int getPoolSize() {
+        return workerCount.get();
+    }
+
+    /**
+     * 正在执行任务的线程数(近似值)
+     * @return
+     */
+    public int getActiveCount() {
+        return Math.max(0, workerCount.get() - idleCount.get());
+    }
+
+    /**
+     * 等待执行的任务数，包括工作线程的双端队列中的任务
+     * @return
+     */
+    public int getQueueSize() {
+        int size = workQueue.size();
+        for (WorkerThread worker : threadList) {
+            size += worker.deque.size();
+        }
+        return size;
+    }
+
+    /**
+     * 正常执行完的任务数
+     * @return
+     */
+    public long getCompletedTaskCount() {
+        mainLock.lock();
+        try {
+            long count = finishedTaskCount;
+            for (WorkerThread worker : threadList) {
+                count += worker.completedTasks;
+            }
+            return count;
+        } finally {
+            mainLock.unlock();
+        }
+    }
+
+    /**
+     * 抛出异常的任务数
+     * @return
+     */
+    public long getFailedTaskCount() {
+        return failedTaskCount.sum();
+    }
+
+    /**
+     * 在managedBlock()中阻塞的工作线程数
+     * @return
+     */
+    public int getBlockedCount() {
+        return blockedCount.get();
+    }
+
+    /**
+     * 检测到饥饿的次数
+     * @return
+     */
+    public long getStarvationCount() {
+        return starvationCount.sum();
+    }
+
+    /**
+     * 超过截止时间没有执行就被丢弃的任务数
+     * @return
+     */
+    public long getExpiredTaskCount() {
+        return expiredTaskCount.sum();
+    }
+
+    public int getCorePoolSize() {
+        return corePoolSize;
+    }
+
+    /**
+     * 修改核心线程数，增大时如果队列中有任务立即创建线程，减小时多出的线程空闲keepAliveTime后退出
+     * @param corePoolSize
+     */
+    public void setCorePoolSize(int corePoolSize) {
+        if (corePoolSize < 0 || corePoolSize > maximumPoolSize) {
+            throw new IllegalArgumentException();
+        }
+        int delta = corePoolSize - this.corePoolSize;
+        this.corePoolSize = corePoolSize;
+        if (delta < 0) {
+            wakeIdleWorkers();
+        } else {
+            while (delta-- > 0 && !workQueue.isEmpty() && addWorker(true)) {
+                // 继续创建
+            }
+        }
+    }
+
+    public int getMaximumPoolSize() {
+        return maximumPoolSize;
+    }
+
+    /**
+     * 修改最大线程数，减小时多出的线程执行完当前任务后退出
+     * @param maximumPoolSize
+     */
+    public void setMaximumPoolSize(int maximumPoolSize) {
+        if (maximumPoolSize < 1 || maximumPoolSize < corePoolSize) {
+            throw new IllegalArgumentException();
+        }
+        int old = this.maximumPoolSize;
+        this.maximumPoolSize = maximumPoolSize;
+        if (maximumPoolSize < old) {
+            wakeIdleWorkers();
+        }
+    }
+
+    public long getKeepAliveTime(TimeUnit unit) {
+        return unit.convert(keepAliveNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void setKeepAliveTime(long time, TimeUnit unit) {
+        if (time <= 0) {
+            throw new IllegalArgumentException();
+        }
+        long old = keepAliveNanos;
+        keepAliveNanos = unit.toNanos(time);
+        if (keepAliveNanos < old) {
+            wakeIdleWorkers();
+        }
+    }
+
+    public int getGrowthQueueDepth() {
+        return growthQueueDepth;
+    }
+
+    /**
+     * 没有空闲线程时，等待的任务数超过该值就增加工作线程，默认为0，即只要有任务在等待就增长
+     * @param growthQueueDepth
+     */
+    public void setGrowthQueueDepth(int growthQueueDepth) {
+        if (growthQueueDepth < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.growthQueueDepth = growthQueueDepth;
+    }
+
+    public long getGrowthLatency(TimeUnit unit) {
+        return unit.convert(growthLatencyNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 没有空闲线程时，新任务预计的排队时间超过该值就增加工作线程，即使等待的任务数没有超过growthQueueDepth。
+     * 排队时间按等待的任务数乘以取任务的平均间隔估算
+     * @param latency 0表示不按延迟增长
+     * @param unit
+     */
+    public void setGrowthLatency(long latency, TimeUnit unit) {
+        if (latency < 0) {
+            throw new IllegalArgumentException();
+        }
+        if (latency > 0) {
+            lastDequeueNanos = System.nanoTime();
+            dequeueIntervalNanos = 0L;
+        }
+        this.growthLatencyNanos = unit.toNanos(latency);
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * 修改每次从共享队列最多取出的任务数，共享队列模式下默认为1
+     * @param batchSize 1表示每次只取一个
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.batchSize = batchSize;
+    }
+
+    public int getMaxCompensation() {
+        return maxCompensation;
+    }
+
+    /**
+     * 修改最多同时存在的补偿线程数，减小时已经存在的补偿线程在阻塞结束后才收回
+     * @param maxCompensation 0表示不补偿
+     */
+    public void setMaxCompensation(int maxCompensation) {
+        if (maxCompensation < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.maxCompensation = maxCompensation;
     }
 
     /**
      * 工作线程负责消费任务，并执行任务
      */
     private class WorkerThread extends Thread {
-        @SneakyThrows
+
+        /**
+         * 自己的双端队列，保存工作窃取模式下提交的子任务和批量取出的任务，接替的线程会继承
+         */
+        private final WorkStealingDeque deque;
+
+        /**
+         * 批量取任务时的临时缓冲
+         */
+        private final List<Runnable> batch = new ArrayList<>();
+
+        /**
+         * 是否阻塞在共享队列上，shutdown()只中断这些线程
+         */
+        private volatile boolean idle;
+
+        /**
+         * 共享队列模式下执行任务期间持有，和ThreadPoolExecutor.Worker一样，唤醒空闲线程时拿到它才中断
+         */
+        private final ReentrantLock runLock = new ReentrantLock();
+
+        /**
+         * 工作窃取模式下执行的本地任务数
+         */
+        private int localRuns;
+
+        /**
+         * 正常执行完的任务数，只有自己修改
+         */
+        private volatile long completedTasks;
+
+        WorkerThread(WorkStealingDeque deque) {
+            this.deque = deque;
+        }
+
+        /**
+         * 任务抛出的异常不捕获，交给线程的UncaughtExceptionHandler处理，退出前由新的工作线程接替
+         */
         @Override
         public void run() {
+            boolean completedAbruptly = true;
+            try {
+                Runnable task;
+                while ((task = workStealing ? getStolenTask() : getTask()) != null) {
+                    if (growthLatencyNanos > 0) {
+                        recordDequeue();
+                    }
+                    if (!workStealing) {
+                        runLock.lock();
+                    }
+                    try {
+                        // 唤醒空闲线程的中断只在持有runLock时发出，拿到锁之后残留的都是这种中断，清除，避免影响任务；
+                        // shutdownNow()的中断保留
+                        if (Thread.interrupted() && state.get() >= STOP) {
+                            interrupt();
+                        }
+                        Runnable original = ExecutorMetrics.unwrap(task);
+                        if (original instanceof PrioritizedTask && ((PrioritizedTask) original).isExpired()) {
+                            // 已经过了截止时间，执行只会让后面的任务也超时；先计数，回调抛出的异常不会影响工作线程
+                            expiredTaskCount.increment();
+                            ((PrioritizedTask) original).expire();
+                            continue;
+                        }
+                        task.run();
+                        completedTasks++;
+                    } finally {
+                        if (!workStealing) {
+                            runLock.unlock();
+                        }
+                    }
+                }
+                completedAbruptly = false;
+            } finally {
+                workerExit(this, completedAbruptly);
+            }
+        }
+
+        private void recordDequeue() {
+            long now = System.nanoTime();
+            long interval = now - lastDequeueNanos;
+            lastDequeueNanos = now;
+            dequeueIntervalNanos += (interval - dequeueIntervalNanos) >> 3;
+        }
+
+        /**
+         * 从共享队列获取任务，超过核心线程数时空闲keepAliveTime后退出
+         * @return 需要退出时返回null，已经减少了线程数
+         */
+        private Runnable getTask() {
+            boolean timedOut = false;
             while (true) {
-                final Runnable task = workQueue.take();
-                task.run();
+                // 先执行上次批量取出的任务，STOP之后留在这里的是shutdownNow()没有取走的任务，也要执行完，不能丢掉
+                Runnable buffered = deque.pop();
+                if (buffered != null) {
+                    return buffered;
+                }
+                // 先标记为空闲再检查状态，shutdown()先修改状态再检查空闲标记，两者至少有一个能看到对方
+                idle = true;
+                idleCount.incrementAndGet();
+                try {
+                    int s = state.get();
+                    if (s >= STOP || (s == SHUTDOWN && workQueue.isEmpty())) {
+                        workerCount.decrementAndGet();
+                        return null;
+                    }
+                    int wc = workerCount.get();
+                    boolean timed = wc > corePoolSize;
+                    if ((wc > maximumWorkers() || (timed && timedOut)) && (wc > 1 || workQueue.isEmpty())) {
+                        if (workerCount.compareAndSet(wc, wc - 1)) {
+                            return null;
+                        }
+                        continue;
+                    }
+                    Runnable task = drainBatch(fairBatchSize(wc));
+                    if (task != null) {
+                        return task;
+                    }
+                    // 其他线程批量取出还没有执行的任务，例如它正在等待的子任务
+                    if (batchSize > 1 && (task = steal()) != null) {
+                        return task;
+                    }
+                    if (s == SHUTDOWN) {
+                        task = workQueue.poll();
+                    } else if (timed) {
+                        task = workQueue.poll(keepAliveNanos, TimeUnit.NANOSECONDS);
+                    } else {
+                        task = workQueue.take();
+                    }
+                    if (task != null) {
+                        return task;
+                    }
+                    timedOut = true;
+                } catch (InterruptedException e) {
+                    // 线程池关闭或者参数修改，重新检查
+                    timedOut = false;
+                } finally {
+                    idleCount.decrementAndGet();
+                    idle = false;
+                }
             }
         }
+
+        /**
+         * 共享队列模式下每次最多取出的任务数，不超过平均每个线程的份额，
+         * 队列中只有少量任务时退化为逐个获取，保证它们分散到不同的线程上并行执行
+         * @param wc
+         * @return
+         */
+        private int fairBatchSize(int wc) {
+            int max = batchSize;
+            if (max <= 1) {
+                return 1;
+            }
+            return Math.min(max, workQueue.size() / Math.max(wc, 1));
+        }
+
+        /**
+         * 一次加锁从共享队列取出最多max个任务，第一个直接返回，其余的按原来的顺序放入自己的双端队列
+         * @param max
+         * @return 没有取到任务或者max不超过1时返回null
+         */
+        private Runnable drainBatch(int max) {
+            if (max <= 1) {
+                return null;
+            }
+            int n = workQueue.drainTo(batch, max);
+            if (n == 0) {
+                return null;
+            }
+            // 双端队列后进先出，倒序放入
+            for (int i = n - 1; i > 0; i--) {
+                deque.push(batch.get(i));
+            }
+            Runnable task = batch.get(0);
+            batch.clear();
+            return task;
+        }
+
+        /**
+         * 工作窃取模式下获取任务
+         * @return 需要退出时返回null，已经减少了线程数
+         */
+        private Runnable getStolenTask() {
+            boolean timedOut = false;
+            while (true) {
+                int s = state.get();
+                if (s >= STOP) {
+                    // shutdownNow()没有取走的任务由自己执行完，见getTask()
+                    Runnable buffered = deque.pop();
+                    if (buffered != null) {
+                        return buffered;
+                    }
+                    workerCount.decrementAndGet();
+                    return null;
+                }
+                Runnable task = nextTask();
+                if (task != null) {
+                    return task;
+                }
+                if (s == SHUTDOWN && !hasWork()) {
+                    workerCount.decrementAndGet();
+                    return null;
+                }
+                // 自己的队列已经空了，只有自己会向其中添加任务，退出时不会丢下任务
+                int wc = workerCount.get();
+                boolean timed = wc > corePoolSize;
+                if ((wc > maximumWorkers() || (timed && timedOut)) && (wc > 1 || !hasWork())) {
+                    if (workerCount.compareAndSet(wc, wc - 1)) {
+                        return null;
+                    }
+                    continue;
+                }
+                timedOut = awaitWork(timed);
+            }
+        }
+
+        /**
+         * 获取下一个任务：自己的队列 -> 窃取其他线程的队列 -> 共享队列
+         * @return
+         */
+        private Runnable nextTask() {
+            Runnable task;
+            if (++localRuns % EXTERNAL_POLL_INTERVAL == 0 && (task = pollExternal()) != null) {
+                return task;
+            }
+            if ((task = deque.pop()) != null) {
+                return task;
+            }
+            if ((task = steal()) != null) {
+                return task;
+            }
+            return pollExternal();
+        }
+
+        /**
+         * 工作窃取模式下从共享队列获取任务，批量取出的任务空闲线程可以窃取，不需要限制份额
+         * @return
+         */
+        private Runnable pollExternal() {
+            int max = batchSize;
+            if (max <= 1) {
+                return workQueue.poll();
+            }
+            Runnable task = drainBatch(max);
+            if (task != null && !deque.isEmpty()) {
+                signalWork();
+            }
+            return task;
+        }
+
+        /**
+         * 从随机位置开始遍历其他线程的队列，避免所有空闲线程都去窃取同一个线程
+         * @return
+         */
+        private Runnable steal() {
+            WorkerThread[] ws = threadList;
+            int n = ws.length;
+            int start = ThreadLocalRandom.current().nextInt(n);
+            for (int i = 0; i < n; i++) {
+                WorkerThread victim = ws[(start + i) % n];
+                if (victim != this) {
+                    Runnable task = victim.deque.steal();
+                    if (task != null) {
+                        return task;
+                    }
+                }
+            }
+            return null;
+        }
+
+        /**
+         * 没有任务时登记为空闲线程并阻塞，登记之后还要再检查一次，避免在登记之前提交的任务没人执行
+         * @param timed 是否最多等待keepAliveTime
+         * @return 是否等待超时
+         */
+        private boolean awaitWork(boolean timed) {
+            idleWorkers.add(this);
+            idleCount.incrementAndGet();
+            if (state.get() != RUNNING || hasWork()) {
+                // 已经被唤醒的线程不在队列中，不需要再减少计数
+                if (idleWorkers.remove(this)) {
+                    idleCount.decrementAndGet();
+                }
+                return false;
+            }
+            long deadline = 0L;
+            if (timed) {
+                long nanos = keepAliveNanos;
+                deadline = System.nanoTime() + nanos;
+                LockSupport.parkNanos(this, nanos);
+            } else {
+                LockSupport.park(this);
+            }
+            if (idleWorkers.remove(this)) {
+                // 超时或者虚假唤醒
+                idleCount.decrementAndGet();
+                return timed && System.nanoTime() - deadline >= 0;
+            }
+            return false;
+        }
+
+        private boolean hasWork() {
+            if (!workQueue.isEmpty()) {
+                return true;
+            }
+            for (WorkerThread worker : threadList) {
+                if (!worker.deque.isEmpty()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private MyThreadPool getPool() {
+            return MyThreadPool.this;
+        }
+
+    }
+
+    /**
+     * 饥饿检测线程，线程池终止后退出
+     */
+    private class StarvationWatchdog extends Thread {
+
+        private final long periodNanos;
+
+        private final Consumer<String> listener;
+
+        /**
+         * 上一个周期结束时执行完的任务数
+         */
+        private long lastFinished = -1L;
+
+        /**
+         * 本次饥饿是否已经报告过
+         */
+        private boolean reported;
+
+        /**
+         * 检测到饥饿后增加的补偿线程数
+         */
+        private int spares;
+
+        StarvationWatchdog(long periodNanos, Consumer<String> listener) {
+            super("MyThreadPool-starvation-watchdog");
+            setDaemon(true);
+            this.periodNanos = periodNanos;
+            this.listener = listener;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!terminated.await(periodNanos, TimeUnit.NANOSECONDS)) {
+                    check();
+                }
+            } catch (InterruptedException e) {
+                // 退出检测
+            }
+        }
+
+        private void check() {
+            long finished = getCompletedTaskCount() + getFailedTaskCount();
+            boolean progressed = finished != lastFinished;
+            lastFinished = finished;
+            int queued = getQueueSize();
+            if (!progressed && queued > 0 && idleCount.get() == 0 && allWorkersWaiting()) {
+                if (!reported) {
+                    reported = true;
+                    starvationCount.increment();
+                    if (listener != null) {
+                        listener.accept(report(queued));
+                    }
+                }
+                // 补偿线程也阻塞时每个周期再增加一个
+                if (tryCompensate()) {
+                    spares++;
+                }
+                return;
+            }
+            if (progressed) {
+                reported = false;
+            }
+            // 积压消除之后再收回，避免补偿线程刚退出又发生饥饿
+            if (spares > 0 && (queued == 0 || idleCount.get() > 0)) {
+                releaseCompensation(spares);
+                spares = 0;
+            }
+        }
+
+        private boolean allWorkersWaiting() {
+            WorkerThread[] ws = threadList;
+            if (ws.length == 0) {
+                return false;
+            }
+            for (WorkerThread worker : ws) {
+                Thread.State s = worker.getState();
+                if (s != Thread.State.WAITING && s != Thread.State.TIMED_WAITING && s != Thread.State.BLOCKED) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private String report(int queued) {
+            WorkerThread[] ws = threadList;
+            StringBuilder sb = new StringBuilder();
+            sb.append("pool starvation: ").append(ws.length).append(" workers waiting, ")
+                    .append(blockedCount.get()).append(" in managedBlock, ")
+                    .append(queued).append(" tasks queued, no task finished in ")
+                    .append(TimeUnit.NANOSECONDS.toMillis(periodNanos)).append("ms");
+            for (WorkerThread worker : ws) {
+                sb.append("\n\"").append(worker.getName()).append("\" ").append(worker.getState());
+                StackTraceElement[] frames = worker.getStackTrace();
+                for (int i = 0; i < frames.length && i < MAX_REPORTED_FRAMES; i++) {
+                    sb.append("\n\tat ").append(frames[i]);
+                }
+            }
+            return sb.toString();
+        }
+
     }
 
     public static void main(String[] args) throws InterruptedException {
@@ -63,6 +1448,8 @@ public class MyThreadPool {
         for (int i = 0; i < 10; i++) {
             pool.execute(command);
         }
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.SECONDS);
     }
 
 }
@@ -1,13 +1,22 @@
 package com.concurrent.tools;
 
+import com.concurrent.tools.mypool.CoDelQueue;
+import com.concurrent.tools.mypool.InstrumentedExecutorService;
+import com.concurrent.tools.mypool.PrioritizedTask;
+import com.concurrent.tools.mypool.PriorityDeadlineQueue;
+import com.concurrent.tools.mypool.SheddingPolicies;
+
 import java.util.Random;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 线程池
@@ -67,6 +76,7 @@ public class ThreadPoolExecutorExample {
          *      ThreadPoolExecutor.CallerRunsPolicy：被拒绝的任务，会再接在调用execute方法的线程中运行，如果该线程已经销毁，则丢弃该任务
          *      ThreadPoolExecutor.DiscardOldestPolicy：会丢弃任务队列中最旧的任务，也就是最先加入队列的，再把这个被拒绝的新任务添加进去
          *      ThreadPoolExecutor.DiscardPolicy：直接拒绝无法处理的任务
+         *      以上策略过载时要么抛异常要么丢弃，SheddingPolicies中有按额度、超时和优先级做决定的策略，见loadShedding()
          */
         var threadPoolExecutor = new ThreadPoolExecutor(
                 5,
@@ -160,10 +170,126 @@ public class ThreadPoolExecutorExample {
         threadPoolExecutor.shutdown();
     }
 
+    /**
+     * 记录指标的线程池
+     *      延迟升高时，按任务类型的排队时间和执行时间可以区分是线程不够还是任务本身变慢，
+     *      同时记录拒绝次数、活跃线程数和队列长度，也可以在JConsole中查看com.concurrent.tools:type=Executor
+     * @throws Exception
+     */
+    private static void instrumented() throws Exception {
+        var threadPoolExecutor = new ThreadPoolExecutor(
+                2,
+                4,
+                5,
+                TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(5),
+                new ThreadPoolExecutor.AbortPolicy());
+        var executor = new InstrumentedExecutorService(threadPoolExecutor);
+        executor.getMetrics().registerMBean("order-service");
+        for (int i = 0; i < 15; i++) {
+            try {
+                executor.execute(i % 3 == 0 ? "listOrders" : "getOrder", () -> {
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                System.out.println("rejected");
+            }
+        }
+        System.out.println(executor.getMetrics().snapshot());
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.SECONDS);
+        System.out.println(executor.getMetrics().snapshot());
+        executor.getMetrics().unregisterMBean();
+    }
+
+    /**
+     * 过载时的拒绝策略：每秒提交的任务数是线程池处理能力的几倍
+     *      有额度的CallerRuns：调用线程执行一部分任务，超过额度的直接失败；
+     *      阻塞等待超时：调用方最多等待一段时间；
+     *      先丢弃最低优先级：批处理任务让路，在线请求仍然能进入队列；
+     *      CoDel：排队时间持续超过目标值后拒绝新任务，并丢弃已经排队太久的任务，队列不会一直积压到超时
+     * @throws Exception
+     */
+    private static void loadShedding() throws Exception {
+        RejectedExecutionHandler[] handlers = {
+                new SheddingPolicies.BudgetedCallerRunsPolicy(1),
+                new SheddingPolicies.BlockWithTimeoutPolicy(20, TimeUnit.MILLISECONDS),
+                new SheddingPolicies.ShedLowestPriorityPolicy()
+        };
+        for (RejectedExecutionHandler handler : handlers) {
+            boolean priority = handler instanceof SheddingPolicies.ShedLowestPriorityPolicy;
+            var threadPoolExecutor = new ThreadPoolExecutor(
+                    2,
+                    2,
+                    5,
+                    TimeUnit.SECONDS,
+                    priority ? new PriorityDeadlineQueue(10) : new ArrayBlockingQueue<>(10),
+                    handler);
+            overload(handler.getClass().getSimpleName(), threadPoolExecutor);
+        }
+        // 丢弃的任务要通知调用方，这里按优先级统计
+        AtomicInteger droppedInteractive = new AtomicInteger();
+        var coDelQueue = new CoDelQueue(1000, 5, 50, TimeUnit.MILLISECONDS, task -> {
+            if (task instanceof PrioritizedTask
+                    && ((PrioritizedTask) task).getPriority() == PrioritizedTask.Priority.INTERACTIVE) {
+                droppedInteractive.incrementAndGet();
+            }
+        });
+        var threadPoolExecutor = new ThreadPoolExecutor(
+                2,
+                2,
+                5,
+                TimeUnit.SECONDS,
+                coDelQueue,
+                new ThreadPoolExecutor.AbortPolicy());
+        overload("CoDelQueue", threadPoolExecutor);
+        System.out.println("CoDelQueue dropped = " + coDelQueue.getDroppedCount()
+                + ", interactive = " + droppedInteractive.get());
+    }
+
+    /**
+     * 提交400个5ms的任务，一半是批处理，线程池每秒只能处理400个，按提交速度需要处理2000个
+     * @param name
+     * @param threadPoolExecutor
+     * @throws Exception
+     */
+    private static void overload(String name, ThreadPoolExecutor threadPoolExecutor) throws Exception {
+        Semaphore done = new Semaphore(0);
+        int rejected = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < 400; i++) {
+            Runnable task = () -> {
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.release();
+            };
+            PrioritizedTask.Priority priority = i % 2 == 0 ? PrioritizedTask.Priority.BATCH : PrioritizedTask.Priority.INTERACTIVE;
+            try {
+                threadPoolExecutor.execute(PrioritizedTask.of(priority, task));
+            } catch (RejectedExecutionException e) {
+                rejected++;
+            }
+            Thread.sleep(0, 500_000);
+        }
+        threadPoolExecutor.shutdown();
+        threadPoolExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        System.out.println(name + ": completed = " + done.availablePermits() + ", rejected = " + rejected
+                + ", elapsed = " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+    }
+
     public static void main(String[] args) throws Exception {
 //        executeRunnable();
 //        submitRunnable();
 //        submitCallable();
+//        instrumented();
+//        loadShedding();
         submitRunnableResult();
     }
 
@@ -0,0 +1,372 @@
+package com.concurrent.tools.mypool;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 支持批量入队的阻塞队列
+ *      JDK的阻塞队列只有drainTo()是批量的，addAll()仍然逐个加锁。
+ *      这里putAll()一次加锁放入所有元素(有界队列空间不够时分多次)，配合drainTo()，生产者和消费者都是每批只加一次锁。
+ *      只用一把锁，适合批量读写，单个元素的吞吐量不如LinkedBlockingQueue的两把锁。
+ * @param <E>
+ */
+public class BatchBlockingQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * 条件变量：队列不空
+     */
+    private final Condition notEmpty = lock.newCondition();
+
+    /**
+     * 条件变量：队列不满
+     */
+    private final Condition notFull = lock.newCondition();
+
+    private final ArrayDeque<E> items = new ArrayDeque<>();
+
+    private final int capacity;
+
+    /**
+     * 元素个数，只在持有锁时修改，size()和isEmpty()不需要加锁
+     */
+    private volatile int count;
+
+    public BatchBlockingQueue() {
+        this(Integer.MAX_VALUE);
+    }
+
+    public BatchBlockingQueue(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * 批量入队，队列满时阻塞，直到所有元素都放入队列
+     * @param c
+     * @throws InterruptedException 被中断时已经放入的元素不会撤回
+     * @throws NullPointerException 包含null时，一个元素都不放入
+     */
+    public void putAll(Collection<? extends E> c) throws InterruptedException {
+        checkNotNull(c);
+        Iterator<? extends E> it = c.iterator();
+        if (!it.hasNext()) {
+            return;
+        }
+        lock.lockInterruptibly();
+        try {
+            while (it.hasNext()) {
+                while (items.size() == capacity) {
+                    notFull.await();
+                }
+                int added = 0;
+                while (items.size() < capacity && it.hasNext()) {
+                    items.addLast(it.next());
+                    added++;
+                }
+                count = items.size();
+                signalNotEmpty(added);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 批量入队，不阻塞
+     * @param c
+     * @return 放入的元素数，队列满时少于c.size()
+     * @throws NullPointerException 包含null时，一个元素都不放入
+     */
+    public int offerAll(Collection<? extends E> c) {
+        checkNotNull(c);
+        lock.lock();
+        try {
+            int added = 0;
+            for (E e : c) {
+                if (items.size() == capacity) {
+                    break;
+                }
+                items.addLast(e);
+                added++;
+            }
+            count = items.size();
+            signalNotEmpty(added);
+            return added;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 加锁之前检查整批元素，避免放入一部分之后才抛出异常
+     * @param c
+     */
+    private static void checkNotNull(Collection<?> c) {
+        for (Object e : c) {
+            if (e == null) {
+                throw new NullPointerException();
+            }
+        }
+    }
+
+    private void signalNotEmpty(int added) {
+        if (added == 1) {
+            notEmpty.signal();
+        } else if (added > 1) {
+            notEmpty.signalAll();
+        }
+    }
+
+    @Override
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        lock.lock();
+        try {
+            if (items.size() == capacity) {
+                return false;
+            }
+            items.addLast(e);
+            count = items.size();
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(E e) throws InterruptedException {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        lock.lockInterruptibly();
+        try {
+            while (items.size() == capacity) {
+                notFull.await();
+            }
+            items.addLast(e);
+            count = items.size();
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (items.size() == capacity) {
+                if (nanos <= 0L) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            items.addLast(e);
+            count = items.size();
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (items.isEmpty()) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (items.isEmpty()) {
+                if (nanos <= 0L) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E poll() {
+        lock.lock();
+        try {
+            return items.isEmpty() ? null : dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private E dequeue() {
+        E e = items.pollFirst();
+        count = items.size();
+        notFull.signal();
+        return e;
+    }
+
+    @Override
+    public E peek() {
+        lock.lock();
+        try {
+            return items.peekFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public int remainingCapacity() {
+        lock.lock();
+        try {
+            return capacity - items.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        lock.lock();
+        try {
+            if (items.removeFirstOccurrence(o)) {
+                count = items.size();
+                notFull.signal();
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        lock.lock();
+        try {
+            return items.contains(o);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Object[] toArray() {
+        lock.lock();
+        try {
+            return items.toArray();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public <T> T[] toArray(T[] a) {
+        lock.lock();
+        try {
+            return items.toArray(a);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 一次加锁取出最多maxElements个元素
+     * @param c
+     * @param maxElements
+     * @return
+     */
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        lock.lock();
+        try {
+            int n = 0;
+            E e;
+            while (n < maxElements && (e = items.pollFirst()) != null) {
+                c.add(e);
+                n++;
+            }
+            if (n > 0) {
+                count = items.size();
+                notFull.signalAll();
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 返回快照的迭代器，不支持remove()
+     * @return
+     */
+    @Override
+    public Iterator<E> iterator() {
+        Object[] snapshot = toArray();
+        return new Iterator<E>() {
+
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                return index < snapshot.length;
+            }
+
+            @Override
+            public E next() {
+                if (index >= snapshot.length) {
+                    throw new NoSuchElementException();
+                }
+                // 快照是从队列中复制出来的，元素都是E
+                @SuppressWarnings("unchecked")
+                E e = (E) snapshot[index++];
+                return e;
+            }
+
+        };
+    }
+
+}
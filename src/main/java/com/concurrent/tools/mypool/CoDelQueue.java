@@ -0,0 +1,479 @@
+package com.concurrent.tools.mypool;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * 按排队时间(sojourn time)做准入控制的阻塞队列，思路来自网络中的CoDel算法
+ *      队列长度不能说明是否过载：处理很快时长队列也没关系，处理很慢时短队列也会超时。排队时间才是调用方感受到的延迟。
+ *      出队时计算每个任务的排队时间，连续interval时间内都超过target，说明队列中一直有积压消不掉，进入过载状态：
+ *          offer()返回false，ThreadPoolExecutor会先尝试增加线程，仍然不行再交给拒绝策略，新请求快速失败而不是排队等到超时；
+ *          排队时间已经超过2倍target的任务在出队时直接丢弃，交给onDrop，调用方大概率已经超时，执行它只会浪费处理能力；
+ *          没有指定onDrop时取消被丢弃的Future，submit()的调用方不会一直等待一个永远不会执行的任务。
+ *      出队的任务排队时间低于target时退出过载状态，恢复接受新任务。
+ *      put()不受过载状态影响，和MyThreadPool一起使用时仍然是阻塞的背压。
+ */
+public class CoDelQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * 条件变量：队列不空
+     */
+    private final Condition notEmpty = lock.newCondition();
+
+    /**
+     * 条件变量：队列不满
+     */
+    private final Condition notFull = lock.newCondition();
+
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+
+    private final int capacity;
+
+    /**
+     * 目标排队时间
+     */
+    private final long targetNanos;
+
+    /**
+     * 排队时间持续超过target多久才算过载
+     */
+    private final long intervalNanos;
+
+    /**
+     * 过载时丢弃的任务交给它处理，例如通知调用方失败，默认取消Future
+     */
+    private final Consumer<Runnable> onDrop;
+
+    /**
+     * 排队时间第一次超过target之后，再过interval的时刻；0表示排队时间没有超过target，由lock保护
+     */
+    private long firstAboveNanos;
+
+    /**
+     * 是否过载，只在持有锁时修改
+     */
+    private volatile boolean overloaded;
+
+    /**
+     * 元素个数，只在持有锁时修改，size()和isEmpty()不需要加锁
+     */
+    private volatile int count;
+
+    private final LongAdder rejectedCount = new LongAdder();
+
+    private final LongAdder droppedCount = new LongAdder();
+
+    /**
+     * @param capacity
+     * @param target 目标排队时间，通常是请求超时时间的一小部分
+     * @param interval 排队时间持续超过target多久才算过载，通常是target的10到20倍
+     * @param unit
+     * @param onDrop 过载时丢弃的任务，为null时取消其中的Future，其他任务只计数
+     */
+    public CoDelQueue(int capacity, long target, long interval, TimeUnit unit, Consumer<Runnable> onDrop) {
+        if (capacity < 1 || target <= 0 || interval <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.capacity = capacity;
+        this.targetNanos = unit.toNanos(target);
+        this.intervalNanos = unit.toNanos(interval);
+        this.onDrop = onDrop == null ? CoDelQueue::cancelIfFuture : onDrop;
+    }
+
+    /**
+     * 默认的丢弃处理：ThreadPoolExecutor.submit()提交的是FutureTask，取消它让get()抛出CancellationException
+     * @param task
+     */
+    private static void cancelIfFuture(Runnable task) {
+        if (task instanceof Future) {
+            ((Future<?>) task).cancel(false);
+        }
+    }
+
+    private void enqueue(Runnable task) {
+        entries.addLast(new Entry(task, System.nanoTime()));
+        count = entries.size();
+        notEmpty.signal();
+    }
+
+    /**
+     * 出队，同时更新过载状态，过载时丢弃排队太久的任务
+     * @param dropped 丢弃的任务，释放锁之后再交给onDrop
+     * @return 队列中只剩下被丢弃的任务时返回null
+     */
+    private Runnable dequeue(List<Runnable> dropped) {
+        long now = System.nanoTime();
+        Entry entry;
+        while ((entry = entries.pollFirst()) != null) {
+            long sojourn = now - entry.enqueueNanos;
+            updateState(sojourn, now);
+            if (overloaded && sojourn > 2 * targetNanos) {
+                dropped.add(entry.task);
+                continue;
+            }
+            break;
+        }
+        if (entries.isEmpty()) {
+            // 积压已经消除，否则过载时拒绝入队，没有任务出队就永远不会退出过载状态
+            firstAboveNanos = 0L;
+            overloaded = false;
+        }
+        count = entries.size();
+        notFull.signalAll();
+        return entry == null ? null : entry.task;
+    }
+
+    private void updateState(long sojourn, long now) {
+        if (sojourn < targetNanos) {
+            firstAboveNanos = 0L;
+            overloaded = false;
+        } else if (firstAboveNanos == 0L) {
+            // 避免和表示"没有超过"的0冲突
+            firstAboveNanos = (now + intervalNanos) | 1L;
+        } else if (now - firstAboveNanos >= 0) {
+            overloaded = true;
+        }
+    }
+
+    private void drop(List<Runnable> dropped) {
+        if (dropped.isEmpty()) {
+            return;
+        }
+        droppedCount.add(dropped.size());
+        for (Runnable task : dropped) {
+            onDrop.accept(ExecutorMetrics.unwrap(task));
+        }
+    }
+
+    /**
+     * 过载时返回false
+     * @param task
+     * @return
+     */
+    @Override
+    public boolean offer(Runnable task) {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+        lock.lock();
+        try {
+            if (overloaded || entries.size() == capacity) {
+                rejectedCount.increment();
+                return false;
+            }
+            enqueue(task);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 不受过载状态影响，队列满时阻塞
+     * @param task
+     * @throws InterruptedException
+     */
+    @Override
+    public void put(Runnable task) throws InterruptedException {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+        lock.lockInterruptibly();
+        try {
+            while (entries.size() == capacity) {
+                notFull.await();
+            }
+            enqueue(task);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 过载时立即返回false，不等待
+     * @param task
+     * @param timeout
+     * @param unit
+     * @return
+     * @throws InterruptedException
+     */
+    @Override
+    public boolean offer(Runnable task, long timeout, TimeUnit unit) throws InterruptedException {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (!overloaded && entries.size() == capacity) {
+                if (nanos <= 0L) {
+                    break;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            if (overloaded || entries.size() == capacity) {
+                rejectedCount.increment();
+                return false;
+            }
+            enqueue(task);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 队列中只剩下被丢弃的任务时继续等待，等待之前先把丢弃的任务交给onDrop，不能一直压在手里
+     * @return
+     * @throws InterruptedException
+     */
+    @Override
+    public Runnable take() throws InterruptedException {
+        while (true) {
+            List<Runnable> dropped = new ArrayList<>(0);
+            Runnable task;
+            lock.lockInterruptibly();
+            try {
+                while (entries.isEmpty()) {
+                    notEmpty.await();
+                }
+                task = dequeue(dropped);
+            } finally {
+                lock.unlock();
+                drop(dropped);
+            }
+            if (task != null) {
+                return task;
+            }
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        long deadline = System.nanoTime() + nanos;
+        while (true) {
+            List<Runnable> dropped = new ArrayList<>(0);
+            Runnable task;
+            lock.lockInterruptibly();
+            try {
+                while (entries.isEmpty()) {
+                    if (nanos <= 0L) {
+                        return null;
+                    }
+                    nanos = notEmpty.awaitNanos(nanos);
+                }
+                task = dequeue(dropped);
+            } finally {
+                lock.unlock();
+                drop(dropped);
+            }
+            if (task != null) {
+                return task;
+            }
+            nanos = deadline - System.nanoTime();
+        }
+    }
+
+    @Override
+    public Runnable poll() {
+        List<Runnable> dropped = new ArrayList<>(0);
+        lock.lock();
+        try {
+            return entries.isEmpty() ? null : dequeue(dropped);
+        } finally {
+            lock.unlock();
+            drop(dropped);
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        lock.lock();
+        try {
+            Entry head = entries.peekFirst();
+            return head == null ? null : head.task;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public int remainingCapacity() {
+        lock.lock();
+        try {
+            return capacity - entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (o == null) {
+            return false;
+        }
+        lock.lock();
+        try {
+            for (Iterator<Entry> it = entries.iterator(); it.hasNext(); ) {
+                if (o.equals(it.next().task)) {
+                    it.remove();
+                    count = entries.size();
+                    notFull.signal();
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (o == null) {
+            return false;
+        }
+        lock.lock();
+        try {
+            for (Entry entry : entries) {
+                if (o.equals(entry.task)) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Object[] toArray() {
+        return snapshot().toArray();
+    }
+
+    @Override
+    public <T> T[] toArray(T[] a) {
+        return snapshot().toArray(a);
+    }
+
+    private List<Runnable> snapshot() {
+        lock.lock();
+        try {
+            List<Runnable> tasks = new ArrayList<>(entries.size());
+            for (Entry entry : entries) {
+                tasks.add(entry.task);
+            }
+            return tasks;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 一次加锁取出最多maxElements个元素，不丢弃任务
+     *      shutdownNow()通过它把剩下的任务交还给调用方，这些任务不能在这里被丢弃
+     * @param c
+     * @param maxElements
+     * @return
+     */
+    @Override
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        if (maxElements <= 0) {
+            return 0;
+        }
+        lock.lock();
+        try {
+            int n = 0;
+            Entry entry;
+            while (n < maxElements && (entry = entries.pollFirst()) != null) {
+                c.add(entry.task);
+                n++;
+            }
+            if (entries.isEmpty()) {
+                firstAboveNanos = 0L;
+                overloaded = false;
+            }
+            count = entries.size();
+            if (n > 0) {
+                notFull.signalAll();
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 返回快照的迭代器，不支持remove()
+     * @return
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        return Collections.unmodifiableList(snapshot()).iterator();
+    }
+
+    public boolean isOverloaded() {
+        return overloaded;
+    }
+
+    /**
+     * 过载或者队列满时offer()返回false的次数
+     * @return
+     */
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    /**
+     * 过载时出队丢弃的任务数
+     * @return
+     */
+    public long getDroppedCount() {
+        return droppedCount.sum();
+    }
+
+    /**
+     * 队列中的元素，记录入队时间
+     */
+    private static final class Entry {
+
+        private final Runnable task;
+
+        private final long enqueueNanos;
+
+        Entry(Runnable task, long enqueueNanos) {
+            this.task = task;
+            this.enqueueNanos = enqueueNanos;
+        }
+
+    }
+
+}
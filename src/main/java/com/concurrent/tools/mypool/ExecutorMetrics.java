@@ -0,0 +1,446 @@
+package com.concurrent.tools.mypool;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * 线程池指标
+ *      延迟升高时要区分是排队太久还是任务本身变慢：提交时包装任务并记下时间，开始执行时记录排队时间，执行完记录执行时间，
+ *      按任务类型分别放入{@link LatencyHistogram}。另外记录拒绝次数，线程数、活跃线程数和队列长度在读取时从线程池获取。
+ *      每个任务的开销是一个包装对象、三次System.nanoTime()和两次原子自增，任务类型在提交时解析。
+ *      可以通过{@link #snapshot()}读取，也可以注册为MXBean，用JConsole等工具查看。
+ */
+public class ExecutorMetrics implements ExecutorMetricsMXBean {
+
+    /**
+     * 默认的任务类型：PrioritizedTask按优先级，其余按类名，lambda按定义它的类
+     */
+    private static final ClassValue<String> CLASS_TYPES = new ClassValue<String>() {
+
+        @Override
+        protected String computeValue(Class<?> type) {
+            String name = type.getName();
+            int lambda = name.indexOf("$$Lambda");
+            return lambda < 0 ? name : name.substring(0, lambda) + ".lambda";
+        }
+
+    };
+
+    private final IntSupplier poolSize;
+
+    private final IntSupplier activeCount;
+
+    private final IntSupplier queueSize;
+
+    private final ConcurrentHashMap<String, TypeRecorder> recorders = new ConcurrentHashMap<>();
+
+    private final LongAdder rejectedCount = new LongAdder();
+
+    private volatile Function<Object, String> typeResolver = ExecutorMetrics::defaultType;
+
+    private ObjectName objectName;
+
+    /**
+     * @param poolSize 当前线程数
+     * @param activeCount 正在执行任务的线程数
+     * @param queueSize 等待执行的任务数
+     */
+    public ExecutorMetrics(IntSupplier poolSize, IntSupplier activeCount, IntSupplier queueSize) {
+        if (poolSize == null || activeCount == null || queueSize == null) {
+            throw new NullPointerException();
+        }
+        this.poolSize = poolSize;
+        this.activeCount = activeCount;
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * 读取ThreadPoolExecutor的线程数、活跃线程数和队列长度，任务需要通过{@link InstrumentedExecutorService}提交
+     * @param executor
+     * @return
+     */
+    public static ExecutorMetrics of(ThreadPoolExecutor executor) {
+        return new ExecutorMetrics(executor::getPoolSize, executor::getActiveCount, () -> executor.getQueue().size());
+    }
+
+    private static String defaultType(Object task) {
+        if (task instanceof PrioritizedTask) {
+            return ((PrioritizedTask) task).getPriority().name();
+        }
+        return CLASS_TYPES.get(task.getClass());
+    }
+
+    /**
+     * 修改任务类型的解析方式，类型的数量应该是有限的
+     * @param typeResolver 参数是提交的Runnable或者Callable
+     */
+    public void setTypeResolver(Function<Object, String> typeResolver) {
+        if (typeResolver == null) {
+            throw new NullPointerException();
+        }
+        this.typeResolver = typeResolver;
+    }
+
+    /**
+     * @param task 提交的Runnable或者Callable
+     * @return 任务类型
+     */
+    public String typeOf(Object task) {
+        return typeResolver.apply(task);
+    }
+
+    /**
+     * 包装任务，记录排队时间和执行时间，类型由typeResolver解析
+     * @param task
+     * @return
+     */
+    public Runnable wrap(Runnable task) {
+        return wrap(typeOf(task), task);
+    }
+
+    /**
+     * 包装任务，记录排队时间和执行时间
+     * @param type 任务类型
+     * @param task
+     * @return
+     */
+    public Runnable wrap(String type, Runnable task) {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+        return new TimedTask(task, recorders.computeIfAbsent(type, k -> new TypeRecorder()), System.nanoTime());
+    }
+
+    /**
+     * @param task
+     * @return 被{@link #wrap(Runnable)}包装过的任务返回原来的任务，否则原样返回
+     */
+    public static Runnable unwrap(Runnable task) {
+        return task instanceof TimedTask ? ((TimedTask) task).task : task;
+    }
+
+    public void recordRejection() {
+        rejectedCount.increment();
+    }
+
+    /**
+     * 包装拒绝策略，先计数再交给原来的策略处理
+     * @param handler
+     * @return
+     */
+    public RejectedExecutionHandler countingRejections(RejectedExecutionHandler handler) {
+        return (r, executor) -> {
+            recordRejection();
+            handler.rejectedExecution(r, executor);
+        };
+    }
+
+    /**
+     * 注册为MXBean，ObjectName为com.concurrent.tools:type=Executor,name=name
+     * @param name 线程池名称
+     * @throws JMException
+     */
+    public synchronized void registerMBean(String name) throws JMException {
+        if (objectName != null) {
+            return;
+        }
+        ObjectName on = new ObjectName("com.concurrent.tools:type=Executor,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+        objectName = on;
+    }
+
+    public synchronized void unregisterMBean() throws JMException {
+        if (objectName == null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(objectName)) {
+            server.unregisterMBean(objectName);
+        }
+        objectName = null;
+    }
+
+    @Override
+    public int getPoolSize() {
+        return poolSize.getAsInt();
+    }
+
+    @Override
+    public int getActiveCount() {
+        return activeCount.getAsInt();
+    }
+
+    @Override
+    public int getIdleCount() {
+        return Math.max(0, getPoolSize() - getActiveCount());
+    }
+
+    @Override
+    public int getQueueSize() {
+        return queueSize.getAsInt();
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    @Override
+    public long getCompletedCount() {
+        long count = 0;
+        for (TypeRecorder recorder : recorders.values()) {
+            count += recorder.runTime.snapshot().getCount() - recorder.failed.sum();
+        }
+        return count;
+    }
+
+    @Override
+    public long getFailedCount() {
+        long count = 0;
+        for (TypeRecorder recorder : recorders.values()) {
+            count += recorder.failed.sum();
+        }
+        return count;
+    }
+
+    @Override
+    public Map<String, TaskStats> getTaskStats() {
+        Map<String, TaskStats> stats = new TreeMap<>();
+        recorders.forEach((type, recorder) -> stats.put(type, recorder.stats()));
+        return stats;
+    }
+
+    /**
+     * 当前所有指标的快照
+     * @return
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(getPoolSize(), getActiveCount(), getQueueSize(), getRejectedCount(), getTaskStats());
+    }
+
+    /**
+     * 一个任务类型的记录
+     */
+    private static final class TypeRecorder {
+
+        private final LatencyHistogram queueWait = new LatencyHistogram();
+
+        private final LatencyHistogram runTime = new LatencyHistogram();
+
+        private final LongAdder failed = new LongAdder();
+
+        TaskStats stats() {
+            return new TaskStats(queueWait.snapshot(), runTime.snapshot(), failed.sum());
+        }
+
+    }
+
+    /**
+     * 记录提交时间的任务
+     */
+    private static final class TimedTask implements Runnable {
+
+        private final Runnable task;
+
+        private final TypeRecorder recorder;
+
+        private final long submitNanos;
+
+        TimedTask(Runnable task, TypeRecorder recorder, long submitNanos) {
+            this.task = task;
+            this.recorder = recorder;
+            this.submitNanos = submitNanos;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            recorder.queueWait.record(start - submitNanos);
+            boolean failed = true;
+            try {
+                task.run();
+                failed = false;
+            } finally {
+                recorder.runTime.record(System.nanoTime() - start);
+                if (failed) {
+                    recorder.failed.increment();
+                }
+            }
+        }
+
+    }
+
+    /**
+     * 一个任务类型的统计，时间单位都是微秒，执行时间包括抛出异常的任务
+     */
+    public static final class TaskStats {
+
+        private final LatencyHistogram.Snapshot queueWait;
+
+        private final LatencyHistogram.Snapshot runTime;
+
+        private final long failedCount;
+
+        TaskStats(LatencyHistogram.Snapshot queueWait, LatencyHistogram.Snapshot runTime, long failedCount) {
+            this.queueWait = queueWait;
+            this.runTime = runTime;
+            this.failedCount = failedCount;
+        }
+
+        /**
+         * @return 已经开始执行的任务数
+         */
+        public long getStartedCount() {
+            return queueWait.getCount();
+        }
+
+        /**
+         * @return 已经执行完的任务数，包括抛出异常的
+         */
+        public long getFinishedCount() {
+            return runTime.getCount();
+        }
+
+        public long getFailedCount() {
+            return failedCount;
+        }
+
+        public long getQueueWaitMeanMicros() {
+            return micros(queueWait.getMean());
+        }
+
+        public long getQueueWaitP50Micros() {
+            return micros(queueWait.getPercentile(50));
+        }
+
+        public long getQueueWaitP99Micros() {
+            return micros(queueWait.getPercentile(99));
+        }
+
+        public long getQueueWaitMaxMicros() {
+            return micros(queueWait.getMax());
+        }
+
+        public long getRunTimeMeanMicros() {
+            return micros(runTime.getMean());
+        }
+
+        public long getRunTimeP50Micros() {
+            return micros(runTime.getPercentile(50));
+        }
+
+        public long getRunTimeP99Micros() {
+            return micros(runTime.getPercentile(99));
+        }
+
+        public long getRunTimeMaxMicros() {
+            return micros(runTime.getMax());
+        }
+
+        /**
+         * 任意百分位数的排队时间
+         * @param percentile 0到100
+         * @param unit
+         * @return
+         */
+        public long queueWait(double percentile, TimeUnit unit) {
+            return unit.convert(queueWait.getPercentile(percentile), TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * 任意百分位数的执行时间
+         * @param percentile 0到100
+         * @param unit
+         * @return
+         */
+        public long runTime(double percentile, TimeUnit unit) {
+            return unit.convert(runTime.getPercentile(percentile), TimeUnit.NANOSECONDS);
+        }
+
+        private static long micros(long nanos) {
+            return TimeUnit.NANOSECONDS.toMicros(nanos);
+        }
+
+        @Override
+        public String toString() {
+            return "started=" + getStartedCount() + " failed=" + failedCount
+                    + " queueWait(p50/p99/max)=" + getQueueWaitP50Micros() + "/" + getQueueWaitP99Micros() + "/" + getQueueWaitMaxMicros() + "us"
+                    + " runTime(p50/p99/max)=" + getRunTimeP50Micros() + "/" + getRunTimeP99Micros() + "/" + getRunTimeMaxMicros() + "us";
+        }
+
+    }
+
+    /**
+     * 指标快照
+     */
+    public static final class Snapshot {
+
+        private final int poolSize;
+
+        private final int activeCount;
+
+        private final int queueSize;
+
+        private final long rejectedCount;
+
+        private final Map<String, TaskStats> taskStats;
+
+        Snapshot(int poolSize, int activeCount, int queueSize, long rejectedCount, Map<String, TaskStats> taskStats) {
+            this.poolSize = poolSize;
+            this.activeCount = activeCount;
+            this.queueSize = queueSize;
+            this.rejectedCount = rejectedCount;
+            this.taskStats = taskStats;
+        }
+
+        public int getPoolSize() {
+            return poolSize;
+        }
+
+        public int getActiveCount() {
+            return activeCount;
+        }
+
+        public int getIdleCount() {
+            return Math.max(0, poolSize - activeCount);
+        }
+
+        public int getQueueSize() {
+            return queueSize;
+        }
+
+        public long getRejectedCount() {
+            return rejectedCount;
+        }
+
+        /**
+         * @return 按任务类型排序
+         */
+        public Map<String, TaskStats> getTaskStats() {
+            return taskStats;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("poolSize=").append(poolSize).append(" active=").append(activeCount)
+                    .append(" idle=").append(getIdleCount()).append(" queue=").append(queueSize)
+                    .append(" rejected=").append(rejectedCount);
+            taskStats.forEach((type, stats) -> sb.append("\n  ").append(type).append(": ").append(stats));
+            return sb.toString();
+        }
+
+    }
+
+}
@@ -0,0 +1,29 @@
+package com.concurrent.tools.mypool;
+
+import java.util.Map;
+
+/**
+ * 线程池指标的JMX接口，见{@link ExecutorMetrics#registerMBean(String)}
+ */
+public interface ExecutorMetricsMXBean {
+
+    int getPoolSize();
+
+    int getActiveCount();
+
+    int getIdleCount();
+
+    int getQueueSize();
+
+    long getRejectedCount();
+
+    long getCompletedCount();
+
+    long getFailedCount();
+
+    /**
+     * @return 按任务类型统计的排队时间和执行时间
+     */
+    Map<String, ExecutorMetrics.TaskStats> getTaskStats();
+
+}
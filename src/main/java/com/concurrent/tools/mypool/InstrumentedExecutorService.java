@@ -0,0 +1,114 @@
+package com.concurrent.tools.mypool;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 记录指标的ThreadPoolExecutor装饰器
+ *      提交的任务都用{@link ExecutorMetrics#wrap(String, Runnable)}包装后交给原来的线程池，拒绝策略包装为先计数再处理。
+ *      submit()提交的任务按原来的Runnable/Callable解析类型，而不是FutureTask。
+ *      原来的线程池不应该再直接提交任务，否则这些任务不会被记录。
+ */
+public class InstrumentedExecutorService extends AbstractExecutorService {
+
+    private final ThreadPoolExecutor executor;
+
+    private final ExecutorMetrics metrics;
+
+    public InstrumentedExecutorService(ThreadPoolExecutor executor) {
+        this.executor = executor;
+        this.metrics = ExecutorMetrics.of(executor);
+        executor.setRejectedExecutionHandler(metrics.countingRejections(executor.getRejectedExecutionHandler()));
+    }
+
+    public ExecutorMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 按指定的任务类型提交
+     * @param type
+     * @param command
+     */
+    public void execute(String type, Runnable command) {
+        executor.execute(metrics.wrap(type, command));
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (command instanceof TypedFutureTask) {
+            executor.execute(metrics.wrap(((TypedFutureTask<?>) command).type, command));
+        } else {
+            executor.execute(metrics.wrap(command));
+        }
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+        return new TypedFutureTask<>(metrics.typeOf(runnable), runnable, value);
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+        return new TypedFutureTask<>(metrics.typeOf(callable), callable);
+    }
+
+    @Override
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * @return 还没有执行的任务，去掉了包装
+     */
+    @Override
+    public List<Runnable> shutdownNow() {
+        List<Runnable> tasks = new ArrayList<>();
+        for (Runnable task : executor.shutdownNow()) {
+            tasks.add(ExecutorMetrics.unwrap(task));
+        }
+        return tasks;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return executor.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return executor.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * 记住原来任务类型的FutureTask
+     * @param <T>
+     */
+    private static final class TypedFutureTask<T> extends FutureTask<T> {
+
+        private final String type;
+
+        TypedFutureTask(String type, Callable<T> callable) {
+            super(callable);
+            this.type = type;
+        }
+
+        TypedFutureTask(String type, Runnable runnable, T value) {
+            super(runnable, value);
+            this.type = type;
+        }
+
+    }
+
+}
@@ -0,0 +1,532 @@
+package com.concurrent.tools.mypool;
+
+import com.concurrent.tools.MyThreadPool;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按key分区的线程池
+ *      每个分区(lane)是一个只有一个工作线程的{@link MyThreadPool}，任务按key的哈希值分配到固定的分区，
+ *      同一个key的任务在同一个线程上按提交顺序执行，不需要加锁；不同分区之间完全并行。
+ *      每个分区的队列有界，分区满时提交阻塞，产生背压。
+ *
+ * 热点key迁移(可选)：
+ *      多个热点key哈希到同一个分区时，这个分区积压，其他分区空闲。开启迁移后，分区积压超过阈值时，
+ *      把占多数的key迁移到最空闲的分区。为了保证顺序，迁移时先在原分区放入一个标记任务，
+ *      标记之前该key的任务仍然在原分区执行，之后提交的任务先缓存在迁移对象中，标记执行时再按顺序转交给新分区。
+ *      缓存的容量和分区队列相同，缓存满时提交同样阻塞，迁移期间热点key也有背压。
+ *      转交由一个虚拟线程完成：向新分区提交可能阻塞，不能占用原分区唯一的工作线程，也不能在持有迁移对象的锁时阻塞。
+ *      同一时刻最多只有一个迁移，避免两个分区互相转交任务时死锁。
+ */
+public class KeyAffinityExecutor {
+
+    /**
+     * 两次迁移之间的最小间隔
+     */
+    private static final long REBALANCE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * 每个分区平均最多记录多少个迁移过的key，迁移表不会缩小，超过之后不再迁移
+     */
+    private static final int MAX_OVERRIDES_PER_LANE = 8;
+
+    private final Lane[] lanes;
+
+    /**
+     * 每个分区的队列容量，也是迁移缓存的容量
+     */
+    private final int laneCapacity;
+
+    /**
+     * 分区积压超过该值时迁移热点key，0表示不迁移
+     */
+    private final int rebalanceThreshold;
+
+    /**
+     * 迁移过的key：值为新分区的下标，正在迁移时为{@link Migration}
+     */
+    private final ConcurrentHashMap<Object, Object> overrides = new ConcurrentHashMap<>();
+
+    /**
+     * 正在进行的迁移，由this保护
+     */
+    private Migration migration;
+
+    private long lastRebalanceNanos = System.nanoTime() - REBALANCE_INTERVAL_NANOS;
+
+    private long migrationCount;
+
+    private volatile boolean closed;
+
+    /**
+     * 不迁移热点key
+     * @param laneCount 分区数，通常等于CPU核数
+     * @param laneCapacity 每个分区的队列容量
+     */
+    public KeyAffinityExecutor(int laneCount, int laneCapacity) {
+        this(laneCount, laneCapacity, 0);
+    }
+
+    /**
+     * @param laneCount 分区数，通常等于CPU核数
+     * @param laneCapacity 每个分区的队列容量
+     * @param rebalanceThreshold 分区积压超过该值时迁移热点key，0表示不迁移。开启后提交时需要对分区加锁
+     */
+    public KeyAffinityExecutor(int laneCount, int laneCapacity, int rebalanceThreshold) {
+        if (laneCount < 1 || laneCapacity < 1 || rebalanceThreshold < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.rebalanceThreshold = rebalanceThreshold;
+        this.laneCapacity = laneCapacity;
+        this.lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane(new ArrayBlockingQueue<>(laneCapacity));
+        }
+    }
+
+    /**
+     * 提交任务，同一个key的任务按提交顺序执行
+     *      不同线程并发提交同一个key的任务时，它们之间的顺序由谁先入队决定
+     * @param key
+     * @param task
+     * @throws InterruptedException
+     * @throws RejectedExecutionException 已经关闭
+     */
+    public void execute(Object key, Runnable task) throws InterruptedException {
+        if (key == null || task == null) {
+            throw new NullPointerException();
+        }
+        if (closed) {
+            throw new RejectedExecutionException("executor is shutdown");
+        }
+        if (rebalanceThreshold == 0) {
+            lanes[laneOf(key)].pool.execute(task);
+            return;
+        }
+        while (true) {
+            Object route = overrides.get(key);
+            if (route instanceof Migration) {
+                if (((Migration) route).offer(task)) {
+                    return;
+                }
+                // 迁移刚刚完成，按新分区重新路由
+                continue;
+            }
+            int index = route == null ? laneOf(key) : (Integer) route;
+            Lane lane = lanes[index];
+            boolean hot;
+            // 在分区锁中确认路由没有变化再入队，开始迁移之后不会再有该key的任务排在标记任务之后
+            synchronized (lane) {
+                if (!Objects.equals(overrides.get(key), route)) {
+                    continue;
+                }
+                lane.pool.execute(task);
+                hot = lane.vote(key) && lane.queue.size() > rebalanceThreshold;
+            }
+            if (hot) {
+                tryRebalance(key, index);
+            }
+            return;
+        }
+    }
+
+    private int laneOf(Object key) {
+        int h = key.hashCode();
+        return ((h ^ (h >>> 16)) & 0x7fffffff) % lanes.length;
+    }
+
+    /**
+     * 把积压分区中占多数的key迁移到最空闲的分区
+     * @param key
+     * @param from
+     */
+    private void tryRebalance(Object key, int from) {
+        int to = 0;
+        for (int i = 1; i < lanes.length; i++) {
+            if (lanes[i].queue.size() < lanes[to].queue.size()) {
+                to = i;
+            }
+        }
+        // 目标分区也很忙时迁移没有意义
+        if (to == from || lanes[to].queue.size() * 4 > lanes[from].queue.size()) {
+            return;
+        }
+        Migration m;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (closed || migration != null || now - lastRebalanceNanos < REBALANCE_INTERVAL_NANOS
+                    || overrides.size() >= lanes.length * MAX_OVERRIDES_PER_LANE) {
+                return;
+            }
+            m = new Migration(key, to);
+            migration = m;
+            migrationCount++;
+            lastRebalanceNanos = now;
+        }
+        Lane lane = lanes[from];
+        boolean started = false;
+        try {
+            synchronized (lane) {
+                Object route = overrides.get(key);
+                int current = route == null ? laneOf(key) : (Integer) route;
+                if (current == from) {
+                    m.previousRoute = route;
+                    overrides.put(key, m);
+                    // 标记任务排在该key所有已提交的任务之后
+                    executeUninterruptibly(lane.pool, m);
+                    started = true;
+                }
+            }
+        } catch (RejectedExecutionException e) {
+            // shutdownNow()已经停止了原分区，它在停止分区之前取得了migration，缓存的任务由它取走
+            m.abort();
+        } finally {
+            if (!started) {
+                finishMigration();
+            }
+        }
+    }
+
+    /**
+     * 迁移过程中入队不能因为中断而半途而废，否则该key的任务会乱序或丢失
+     * @param pool
+     * @param task
+     */
+    private static void executeUninterruptibly(MyThreadPool pool, Runnable task) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    pool.execute(task);
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 迁移结束，关闭期间推迟的shutdown在这里完成
+     */
+    private void finishMigration() {
+        boolean shutdownLanes;
+        synchronized (this) {
+            migration = null;
+            shutdownLanes = closed;
+        }
+        if (shutdownLanes) {
+            shutdownLanes();
+        }
+    }
+
+    /**
+     * 关闭，不再接受新任务，已经提交的任务会执行完
+     *      有迁移正在进行时，等迁移把缓存的任务转交给新分区之后再关闭各个分区
+     */
+    public void shutdown() {
+        synchronized (this) {
+            closed = true;
+            if (migration != null) {
+                return;
+            }
+        }
+        shutdownLanes();
+    }
+
+    private void shutdownLanes() {
+        for (Lane lane : lanes) {
+            lane.pool.shutdown();
+        }
+    }
+
+    /**
+     * 立即关闭，中断所有分区的工作线程
+     * @return 还没有执行的任务，包括迁移中缓存的任务
+     */
+    public List<Runnable> shutdownNow() {
+        Migration m;
+        synchronized (this) {
+            closed = true;
+            m = migration;
+        }
+        List<Runnable> tasks = new ArrayList<>();
+        if (m != null) {
+            m.cancel(tasks);
+        }
+        for (Lane lane : lanes) {
+            for (Runnable task : lane.pool.shutdownNow()) {
+                if (!(task instanceof Migration)) {
+                    tasks.add(task);
+                }
+            }
+        }
+        return tasks;
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Lane lane : lanes) {
+            if (!lane.pool.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean isShutdown() {
+        return closed;
+    }
+
+    public boolean isTerminated() {
+        for (Lane lane : lanes) {
+            if (!lane.pool.isTerminated()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    /**
+     * 分区中等待执行的任务数
+     * @param lane
+     * @return
+     */
+    public int getLaneQueueSize(int lane) {
+        return lanes[lane].queue.size();
+    }
+
+    /**
+     * 热点key迁移次数
+     * @return
+     */
+    public synchronized long getMigrationCount() {
+        return migrationCount;
+    }
+
+    /**
+     * 分区
+     */
+    private static final class Lane {
+
+        private final BlockingQueue<Runnable> queue;
+
+        private final MyThreadPool pool;
+
+        /**
+         * 摩尔投票：近期提交中占多数的key，在分区锁中更新
+         */
+        private Object candidate;
+
+        private int votes;
+
+        Lane(BlockingQueue<Runnable> queue) {
+            this.queue = queue;
+            this.pool = new MyThreadPool(1, queue);
+        }
+
+        /**
+         * @param key
+         * @return key是否是近期提交中占多数的key
+         */
+        boolean vote(Object key) {
+            if (votes == 0) {
+                candidate = key;
+                votes = 1;
+            } else if (candidate.equals(key)) {
+                votes++;
+            } else {
+                votes--;
+            }
+            return votes > 1 && candidate.equals(key);
+        }
+
+    }
+
+    /**
+     * 一次热点key迁移，同时也是放入原分区的标记任务
+     */
+    private final class Migration implements Runnable {
+
+        private final Object key;
+
+        private final int target;
+
+        /**
+         * 迁移期间提交的任务，最多laneCapacity个，由this保护
+         */
+        private final ArrayDeque<Runnable> buffer = new ArrayDeque<>();
+
+        private boolean done;
+
+        /**
+         * shutdownNow()已经取走缓存的任务，转交线程不再转交
+         */
+        private boolean cancelled;
+
+        /**
+         * 已经从缓存中取出、正在提交到新分区的任务，由this保护
+         */
+        private Runnable inFlight;
+
+        /**
+         * 转交线程，标记任务执行时启动
+         */
+        private Thread transferThread;
+
+        /**
+         * 迁移之前的路由，撤销时恢复
+         */
+        private Object previousRoute;
+
+        Migration(Object key, int target) {
+            this.key = key;
+            this.target = target;
+        }
+
+        /**
+         * 缓存迁移期间提交的任务，缓存满时阻塞
+         * @param task
+         * @return 迁移已经完成时返回false，需要重新路由
+         * @throws InterruptedException
+         */
+        synchronized boolean offer(Runnable task) throws InterruptedException {
+            while (!done && buffer.size() >= laneCapacity) {
+                wait();
+            }
+            if (done) {
+                return false;
+            }
+            buffer.addLast(task);
+            return true;
+        }
+
+        /**
+         * 原分区执行到标记任务时，该key之前的任务都已经执行完，启动转交线程后立即返回，不阻塞原分区
+         */
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (!done) {
+                    transferThread = Thread.ofVirtual().name("key-migration").start(this::transfer);
+                    return;
+                }
+            }
+            finishMigration();
+        }
+
+        /**
+         * 把缓存的任务按顺序转交给新分区，缓存空了之后完成迁移
+         *      每次在锁中取出一个任务，释放锁之后再提交，提交阻塞时该key的提交者仍然可以向缓存中添加任务
+         */
+        private void transfer() {
+            try {
+                while (true) {
+                    Runnable task;
+                    synchronized (this) {
+                        if (cancelled) {
+                            return;
+                        }
+                        task = buffer.pollFirst();
+                        if (task == null) {
+                            complete();
+                            return;
+                        }
+                        inFlight = task;
+                        notifyAll();
+                    }
+                    boolean sent = false;
+                    try {
+                        lanes[target].pool.execute(task);
+                        sent = true;
+                    } catch (InterruptedException | RejectedExecutionException e) {
+                        // cancel()中断了提交，或者新分区已经停止，放回缓存留给shutdownNow()
+                    }
+                    synchronized (this) {
+                        inFlight = null;
+                        if (!sent) {
+                            buffer.addFirst(task);
+                        }
+                        notifyAll();
+                        if (!sent) {
+                            return;
+                        }
+                    }
+                }
+            } finally {
+                finishMigration();
+            }
+        }
+
+        /**
+         * 标记任务没有入队，撤销迁移
+         *      之前缓存的任务留在buffer中，由shutdownNow()的cancel()取走，不能在这里丢掉
+         */
+        synchronized void abort() {
+            if (overrides.get(key) == this) {
+                if (previousRoute == null) {
+                    overrides.remove(key);
+                } else {
+                    overrides.put(key, previousRoute);
+                }
+            }
+            done = true;
+            notifyAll();
+        }
+
+        /**
+         * shutdownNow()时取出缓存的任务，迁移已经撤销时也要取出
+         *      转交线程正在提交的任务要等它有了结果：提交成功时由新分区的shutdownNow()取走，失败时放回缓存由这里取走
+         * @param tasks
+         */
+        synchronized void cancel(List<Runnable> tasks) {
+            cancelled = true;
+            if (transferThread != null) {
+                transferThread.interrupt();
+            }
+            boolean interrupted = false;
+            while (inFlight != null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            tasks.addAll(buffer);
+            buffer.clear();
+            if (!done) {
+                complete();
+            }
+        }
+
+        /**
+         * 之后的任务直接提交到新分区，调用时持有this锁
+         */
+        private void complete() {
+            overrides.put(key, target);
+            done = true;
+            notifyAll();
+        }
+
+    }
+
+}
@@ -0,0 +1,147 @@
+package com.concurrent.tools.mypool;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 无锁的耗时直方图
+ *      按2的幂分段，每段再均分为8个桶，相对误差不超过12.5%，0到2^63纳秒只需要496个桶。
+ *      记录一次只是一次数组下标计算和一次原子自增，不需要加锁，也不保存样本。
+ *      快照和记录并发时，快照中各个桶的计数可能不是同一时刻的，对百分位数没有影响。
+ */
+public final class LatencyHistogram {
+
+    /**
+     * 每段的桶数 = 2^SUB_BITS
+     */
+    private static final int SUB_BITS = 3;
+
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    private static final int BUCKET_COUNT = (64 - SUB_BITS) * SUB_COUNT + SUB_COUNT;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * 记录一次耗时
+     * @param nanos 负数按0记录
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        buckets.getAndIncrement(indexOf(nanos));
+        // 大部分样本都不超过最大值，先读一次避免CAS
+        if (nanos > max.get()) {
+            max.accumulateAndGet(nanos, Math::max);
+        }
+    }
+
+    /**
+     * 小于SUB_COUNT的值每个值一个桶，之后每段按最高位之后的SUB_BITS位分桶
+     * @param v
+     * @return
+     */
+    private static int indexOf(long v) {
+        if (v < SUB_COUNT) {
+            return (int) v;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    /**
+     * 桶的上界，百分位数取所在桶的上界
+     * @param index
+     * @return
+     */
+    private static long upperBoundOf(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int exp = index / SUB_COUNT + SUB_BITS - 1;
+        long sub = index % SUB_COUNT;
+        long lower = (1L << exp) + (sub << (exp - SUB_BITS));
+        return lower + (1L << (exp - SUB_BITS)) - 1;
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        long count = 0;
+        long sum = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long c = buckets.get(i);
+            counts[i] = c;
+            count += c;
+            // 按桶的中点估算总和
+            if (c != 0) {
+                sum += c * ((upperBoundOf(i) + (i == 0 ? 0 : upperBoundOf(i - 1) + 1)) / 2);
+            }
+        }
+        return new Snapshot(counts, count, sum, max.get());
+    }
+
+    /**
+     * 直方图快照，单位都是纳秒
+     */
+    public static final class Snapshot {
+
+        private final long[] counts;
+
+        private final long count;
+
+        private final long sum;
+
+        private final long max;
+
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * 按桶的中点估算的平均值
+         * @return
+         */
+        public long getMean() {
+            return count == 0 ? 0 : sum / count;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * @param percentile 0到100
+         * @return 不小于该百分位数的桶上界，不超过最大值
+         */
+        public long getPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * Math.min(Math.max(percentile, 0.0), 100.0) / 100.0);
+            if (rank < 1) {
+                rank = 1;
+            }
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBoundOf(i), max);
+                }
+            }
+            return max;
+        }
+
+    }
+
+}
@@ -0,0 +1,150 @@
+package com.concurrent.tools.mypool;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 带优先级和截止时间的任务
+ *      配合{@link PriorityDeadlineQueue}使用：高优先级的任务先执行，同一优先级内截止时间早的先执行(EDF)，都没有截止时间时按提交顺序执行。
+ *      超过截止时间还没有开始执行的任务，{@link com.concurrent.tools.MyThreadPool}在执行之前直接丢弃，
+ *      结果已经没人需要了，执行它只会让后面的任务也超时。
+ */
+public final class PrioritizedTask implements Runnable {
+
+    /**
+     * 优先级，声明顺序就是执行顺序
+     */
+    public enum Priority {
+
+        /**
+         * 在线请求，有延迟要求
+         */
+        INTERACTIVE,
+
+        /**
+         * 普通任务，没有包装的Runnable都是这个优先级
+         */
+        NORMAL,
+
+        /**
+         * 批处理任务，只使用空闲的线程
+         */
+        BATCH
+
+    }
+
+    private final Priority priority;
+
+    private final Runnable task;
+
+    /**
+     * 截止时间，System.nanoTime()的时间轴
+     */
+    private final long deadlineNanos;
+
+    private final boolean hasDeadline;
+
+    /**
+     * 过期被丢弃时的回调
+     */
+    private final Runnable onExpired;
+
+    private PrioritizedTask(Priority priority, Runnable task, long deadlineNanos, boolean hasDeadline, Runnable onExpired) {
+        if (priority == null || task == null) {
+            throw new NullPointerException();
+        }
+        this.priority = priority;
+        this.task = task;
+        this.deadlineNanos = deadlineNanos;
+        this.hasDeadline = hasDeadline;
+        this.onExpired = onExpired;
+    }
+
+    /**
+     * 没有截止时间的任务
+     * @param priority
+     * @param task
+     * @return
+     */
+    public static PrioritizedTask of(Priority priority, Runnable task) {
+        return new PrioritizedTask(priority, task, 0L, false, null);
+    }
+
+    /**
+     * 有截止时间的任务，从现在开始计时
+     * @param priority
+     * @param timeout 超过该时间还没有开始执行就丢弃
+     * @param unit
+     * @param task
+     * @return
+     */
+    public static PrioritizedTask withDeadline(Priority priority, long timeout, TimeUnit unit, Runnable task) {
+        return withDeadline(priority, timeout, unit, task, null);
+    }
+
+    /**
+     * @param priority
+     * @param timeout 超过该时间还没有开始执行就丢弃
+     * @param unit
+     * @param task
+     * @param onExpired 被丢弃时在工作线程中执行，例如通知等待结果的调用方；可以为null
+     * @return
+     */
+    public static PrioritizedTask withDeadline(Priority priority, long timeout, TimeUnit unit, Runnable task,
+                                               Runnable onExpired) {
+        return new PrioritizedTask(priority, task, System.nanoTime() + unit.toNanos(timeout), true, onExpired);
+    }
+
+    @Override
+    public void run() {
+        task.run();
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    public boolean hasDeadline() {
+        return hasDeadline;
+    }
+
+    /**
+     * @return 截止时间，System.nanoTime()的时间轴；没有截止时间时没有意义
+     */
+    public long getDeadlineNanos() {
+        return deadlineNanos;
+    }
+
+    public boolean isExpired() {
+        return hasDeadline && System.nanoTime() - deadlineNanos > 0;
+    }
+
+    /**
+     * 已经过期时执行回调
+     * @return 是否已经过期，过期的任务不应该再执行
+     */
+    public boolean expireIfOverdue() {
+        if (!isExpired()) {
+            return false;
+        }
+        expire();
+        return true;
+    }
+
+    /**
+     * 执行过期回调
+     *      回调是用户代码，抛出的异常交给当前线程的UncaughtExceptionHandler，不向外抛出，
+     *      工作线程丢弃一个过期任务不应该因此退出，也不应该被算作任务执行失败
+     */
+    public void expire() {
+        if (onExpired == null) {
+            return;
+        }
+        try {
+            onExpired.run();
+        } catch (RuntimeException | Error e) {
+            Thread current = Thread.currentThread();
+            current.getUncaughtExceptionHandler().uncaughtException(current, e);
+        }
+    }
+
+}
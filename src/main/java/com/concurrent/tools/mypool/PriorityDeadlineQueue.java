@@ -0,0 +1,394 @@
+package com.concurrent.tools.mypool;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 按优先级和截止时间出队的阻塞队列
+ *      先按{@link PrioritizedTask.Priority}，同一优先级内截止时间早的先出队(EDF)，没有截止时间的排在有截止时间的后面，其余按入队顺序。
+ *      没有包装成{@link PrioritizedTask}的任务是NORMAL优先级、没有截止时间。
+ *      PriorityBlockingQueue对相等的元素不保证先进先出，这里每个元素入队时分配一个序号，同一优先级的普通任务仍然是FIFO。
+ *      严格按优先级出队，在线请求持续占满线程池时批处理任务会一直等待，批处理任务只使用剩余的处理能力。
+ */
+public class PriorityDeadlineQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    private static final Comparator<Entry> ORDER = PriorityDeadlineQueue::compare;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * 条件变量：队列不空
+     */
+    private final Condition notEmpty = lock.newCondition();
+
+    /**
+     * 条件变量：队列不满
+     */
+    private final Condition notFull = lock.newCondition();
+
+    private final PriorityQueue<Entry> entries = new PriorityQueue<>(ORDER);
+
+    private final int capacity;
+
+    /**
+     * 入队序号，由lock保护
+     */
+    private long sequence;
+
+    /**
+     * 元素个数，只在持有锁时修改，size()和isEmpty()不需要加锁
+     */
+    private volatile int count;
+
+    public PriorityDeadlineQueue() {
+        this(Integer.MAX_VALUE);
+    }
+
+    public PriorityDeadlineQueue(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.capacity = capacity;
+    }
+
+    private static int compare(Entry a, Entry b) {
+        int c = a.priority.compareTo(b.priority);
+        if (c != 0) {
+            return c;
+        }
+        if (a.hasDeadline != b.hasDeadline) {
+            return a.hasDeadline ? -1 : 1;
+        }
+        if (a.hasDeadline && a.deadlineNanos != b.deadlineNanos) {
+            // nanoTime可能溢出，只能比较差值
+            return a.deadlineNanos - b.deadlineNanos < 0 ? -1 : 1;
+        }
+        return Long.compare(a.sequence, b.sequence);
+    }
+
+    private void enqueue(Runnable task) {
+        entries.add(new Entry(task, sequence++));
+        count = entries.size();
+        notEmpty.signal();
+    }
+
+    private Runnable dequeue() {
+        Runnable task = entries.poll().task;
+        count = entries.size();
+        notFull.signal();
+        return task;
+    }
+
+    @Override
+    public boolean offer(Runnable task) {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+        lock.lock();
+        try {
+            if (entries.size() == capacity) {
+                return false;
+            }
+            enqueue(task);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Runnable task) throws InterruptedException {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+        lock.lockInterruptibly();
+        try {
+            while (entries.size() == capacity) {
+                notFull.await();
+            }
+            enqueue(task);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(Runnable task, long timeout, TimeUnit unit) throws InterruptedException {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (entries.size() == capacity) {
+                if (nanos <= 0L) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            enqueue(task);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (entries.isEmpty()) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (entries.isEmpty()) {
+                if (nanos <= 0L) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll() {
+        lock.lock();
+        try {
+            return entries.isEmpty() ? null : dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        lock.lock();
+        try {
+            Entry head = entries.peek();
+            return head == null ? null : head.task;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    /**
+     * 队列满时用task替换最后才会出队的任务(优先级最低、截止时间最晚)，用于过载时优先丢弃低优先级的任务。
+     * 需要遍历整个队列，只应该在队列满时调用
+     * @param task
+     * @return 没有放入队列的任务：被替换出来的任务，或者task本身排在最后时返回task；队列没满直接放入时返回null
+     */
+    public Runnable replaceLowest(Runnable task) {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+        lock.lock();
+        try {
+            if (entries.size() < capacity) {
+                enqueue(task);
+                return null;
+            }
+            Entry lowest = null;
+            for (Entry entry : entries) {
+                if (lowest == null || compare(entry, lowest) > 0) {
+                    lowest = entry;
+                }
+            }
+            Entry candidate = new Entry(task, sequence);
+            if (lowest == null || compare(candidate, lowest) > 0) {
+                return task;
+            }
+            entries.remove(lowest);
+            enqueue(task);
+            return lowest.task;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        lock.lock();
+        try {
+            return capacity - entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (o == null) {
+            return false;
+        }
+        lock.lock();
+        try {
+            for (Iterator<Entry> it = entries.iterator(); it.hasNext(); ) {
+                if (o.equals(it.next().task)) {
+                    it.remove();
+                    count = entries.size();
+                    notFull.signal();
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (o == null) {
+            return false;
+        }
+        lock.lock();
+        try {
+            for (Entry entry : entries) {
+                if (o.equals(entry.task)) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 不保证顺序
+     * @return
+     */
+    @Override
+    public Object[] toArray() {
+        return snapshot().toArray();
+    }
+
+    /**
+     * 不保证顺序
+     * @param a
+     * @return
+     */
+    @Override
+    public <T> T[] toArray(T[] a) {
+        return snapshot().toArray(a);
+    }
+
+    private List<Runnable> snapshot() {
+        lock.lock();
+        try {
+            List<Runnable> tasks = new ArrayList<>(entries.size());
+            for (Entry entry : entries) {
+                tasks.add(entry.task);
+            }
+            return tasks;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 一次加锁按出队顺序取出最多maxElements个元素
+     * @param c
+     * @param maxElements
+     * @return
+     */
+    @Override
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        lock.lock();
+        try {
+            int n = 0;
+            Entry entry;
+            while (n < maxElements && (entry = entries.poll()) != null) {
+                c.add(entry.task);
+                n++;
+            }
+            if (n > 0) {
+                count = entries.size();
+                notFull.signalAll();
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 返回快照的迭代器，不保证顺序，不支持remove()
+     * @return
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        return Collections.unmodifiableList(snapshot()).iterator();
+    }
+
+    /**
+     * 队列中的元素，入队时取出排序需要的字段
+     */
+    private static final class Entry {
+
+        private final Runnable task;
+
+        private final PrioritizedTask.Priority priority;
+
+        private final boolean hasDeadline;
+
+        private final long deadlineNanos;
+
+        private final long sequence;
+
+        Entry(Runnable task, long sequence) {
+            this.task = task;
+            this.sequence = sequence;
+            // 开启指标记录时任务被包装过
+            Runnable original = ExecutorMetrics.unwrap(task);
+            if (original instanceof PrioritizedTask) {
+                PrioritizedTask t = (PrioritizedTask) original;
+                this.priority = t.getPriority();
+                this.hasDeadline = t.hasDeadline();
+                this.deadlineNanos = t.getDeadlineNanos();
+            } else {
+                this.priority = PrioritizedTask.Priority.NORMAL;
+                this.hasDeadline = false;
+                this.deadlineNanos = 0L;
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,171 @@
+package com.concurrent.tools.mypool;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * 过载时的拒绝策略
+ *      JDK自带的策略要么抛异常(AbortPolicy)，要么丢弃(DiscardPolicy)，要么无限制地由调用线程执行(CallerRunsPolicy)。
+ *      过载时真正要做的决定是：哪些请求值得继续处理，哪些应该尽快失败，让处理能力用在还来得及完成的请求上，吞吐量不会因为大量超时而崩溃。
+ *      按排队时间准入的CoDel策略不是拒绝策略，拒绝策略只在队列满时才会调用，见{@link CoDelQueue}。
+ */
+public final class SheddingPolicies {
+
+    private SheddingPolicies() {
+    }
+
+    /**
+     * 有额度的CallerRunsPolicy
+     *      调用线程执行被拒绝的任务，提交速度自然降下来；但是所有调用线程(例如Web容器的请求线程)都去执行任务时，整个服务都会卡住。
+     *      同时由调用线程执行的任务数有上限，超过后交给fallback处理
+     */
+    public static class BudgetedCallerRunsPolicy implements RejectedExecutionHandler {
+
+        private final Semaphore budget;
+
+        private final RejectedExecutionHandler fallback;
+
+        /**
+         * 超过额度时抛出RejectedExecutionException
+         * @param maxCallerRuns 最多同时由调用线程执行的任务数
+         */
+        public BudgetedCallerRunsPolicy(int maxCallerRuns) {
+            this(maxCallerRuns, new ThreadPoolExecutor.AbortPolicy());
+        }
+
+        /**
+         * @param maxCallerRuns 最多同时由调用线程执行的任务数
+         * @param fallback 超过额度时的拒绝策略
+         */
+        public BudgetedCallerRunsPolicy(int maxCallerRuns, RejectedExecutionHandler fallback) {
+            if (maxCallerRuns < 1) {
+                throw new IllegalArgumentException();
+            }
+            if (fallback == null) {
+                throw new NullPointerException();
+            }
+            this.budget = new Semaphore(maxCallerRuns);
+            this.fallback = fallback;
+        }
+
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("executor is shutdown");
+            }
+            if (!budget.tryAcquire()) {
+                fallback.rejectedExecution(r, executor);
+                return;
+            }
+            try {
+                r.run();
+            } finally {
+                budget.release();
+            }
+        }
+
+    }
+
+    /**
+     * 阻塞等待队列空出位置，超时后抛出RejectedExecutionException
+     *      短暂的突发流量只让调用方等一会儿，持续过载时调用方最多等待timeout就失败，不会无限期阻塞
+     */
+    public static class BlockWithTimeoutPolicy implements RejectedExecutionHandler {
+
+        private final long timeoutNanos;
+
+        /**
+         * @param timeout 最多等待多久
+         * @param unit
+         */
+        public BlockWithTimeoutPolicy(long timeout, TimeUnit unit) {
+            if (timeout < 0) {
+                throw new IllegalArgumentException();
+            }
+            this.timeoutNanos = unit.toNanos(timeout);
+        }
+
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("executor is shutdown");
+            }
+            boolean queued;
+            try {
+                queued = executor.getQueue().offer(r, timeoutNanos, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("interrupted while waiting for queue space", e);
+            }
+            if (!queued) {
+                throw new RejectedExecutionException("queue is still full after " + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + "ms");
+            }
+            // 等待期间线程池可能已经关闭，绕过execute()入队的任务需要自己撤回
+            if (executor.isShutdown() && executor.remove(r)) {
+                throw new RejectedExecutionException("executor is shutdown");
+            }
+        }
+
+    }
+
+    /**
+     * 队列满时先丢弃优先级最低的任务
+     *      队列必须是{@link PriorityDeadlineQueue}：新任务比队列中最后才会执行的任务优先级高(或者优先级相同但截止时间更早)时替换它，
+     *      否则拒绝新任务。过载时批处理任务先让路，在线请求仍然能进入队列
+     */
+    public static class ShedLowestPriorityPolicy implements RejectedExecutionHandler {
+
+        private final Consumer<Runnable> onShed;
+
+        private final LongAdder shedCount = new LongAdder();
+
+        public ShedLowestPriorityPolicy() {
+            this(null);
+        }
+
+        /**
+         * @param onShed 被挤出队列的任务，例如通知调用方失败；可以为null
+         */
+        public ShedLowestPriorityPolicy(Consumer<Runnable> onShed) {
+            this.onShed = onShed;
+        }
+
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("executor is shutdown");
+            }
+            if (!(executor.getQueue() instanceof PriorityDeadlineQueue)) {
+                throw new RejectedExecutionException("ShedLowestPriorityPolicy requires a PriorityDeadlineQueue");
+            }
+            Runnable victim = ((PriorityDeadlineQueue) executor.getQueue()).replaceLowest(r);
+            if (victim == r) {
+                throw new RejectedExecutionException("task has the lowest priority in a full queue");
+            }
+            if (executor.isShutdown() && executor.remove(r)) {
+                throw new RejectedExecutionException("executor is shutdown");
+            }
+            if (victim != null) {
+                shedCount.increment();
+                if (onShed != null) {
+                    onShed.accept(ExecutorMetrics.unwrap(victim));
+                }
+            }
+        }
+
+        /**
+         * 被挤出队列的任务数
+         * @return
+         */
+        public long getShedCount() {
+            return shedCount.sum();
+        }
+
+    }
+
+}
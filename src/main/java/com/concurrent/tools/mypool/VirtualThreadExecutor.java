@@ -0,0 +1,327 @@
+package com.concurrent.tools.mypool;
+
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordedThread;
+import jdk.jfr.consumer.RecordingStream;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * 每个任务一个虚拟线程的执行器，API与{@link com.concurrent.tools.MyThreadPool}相同
+ *      任务大部分时间阻塞在I/O上时，平台线程池的线程数限制了并发数，CPU还远没有用满。
+ *      虚拟线程阻塞时会从载体线程上卸载，少量载体线程就可以支撑几十万个并发的阻塞任务，不需要池化。
+ *      并发数由信号量限制，达到上限时execute()阻塞，和有界队列满时一样产生背压。
+ *
+ * 钉住(pinning)：
+ *      虚拟线程在synchronized块中或者本地方法中阻塞时，不能从载体线程上卸载，会一直占着载体线程，
+ *      载体线程都被钉住时其他虚拟线程全部无法执行。需要阻塞的临界区应该使用ReentrantLock。
+ *      {@link #enablePinningDiagnostics(Duration, Consumer)}通过JFR的jdk.VirtualThreadPinned事件统计本执行器中被钉住的任务并输出调用栈。
+ *
+ * 指标：
+ *      {@link #enableMetrics()}和MyThreadPool一样返回{@link ExecutorMetrics}，排队时间是等待并发许可的时间，
+ *      每个任务一个线程，线程数就是正在执行的任务数。
+ */
+public class VirtualThreadExecutor {
+
+    private static final int RUNNING = 0;
+    private static final int SHUTDOWN = 1;
+    private static final int STOP = 2;
+    private static final int TERMINATED = 3;
+
+    /**
+     * 钉住诊断输出的最大栈深度
+     */
+    private static final int MAX_PINNED_FRAMES = 16;
+
+    private final String name;
+
+    private final ThreadFactory threadFactory;
+
+    /**
+     * 并发数上限
+     */
+    private final int maxConcurrency;
+
+    private final Semaphore permits;
+
+    /**
+     * 正在执行任务的虚拟线程，shutdownNow()时中断
+     */
+    private final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+
+    private final AtomicInteger state = new AtomicInteger(RUNNING);
+
+    /**
+     * 已经拿到许可的任务数，包括还没有启动的
+     */
+    private final AtomicInteger activeCount = new AtomicInteger();
+
+    /**
+     * 等待许可的提交线程数
+     */
+    private final AtomicInteger queueSize = new AtomicInteger();
+
+    private final LongAdder completedTaskCount = new LongAdder();
+
+    private final LongAdder failedTaskCount = new LongAdder();
+
+    private final LongAdder pinnedCount = new LongAdder();
+
+    private final CountDownLatch terminated = new CountDownLatch(1);
+
+    private volatile RecordingStream pinningStream;
+
+    private volatile ExecutorMetrics metrics;
+
+    /**
+     * @param name 虚拟线程名的前缀，钉住诊断按线程名区分不同的执行器
+     * @param maxConcurrency 最多同时执行的任务数
+     */
+    public VirtualThreadExecutor(String name, int maxConcurrency) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.name = name;
+        this.maxConcurrency = maxConcurrency;
+        this.permits = new Semaphore(maxConcurrency);
+        this.threadFactory = Thread.ofVirtual().name(name + "-", 0).factory();
+    }
+
+    /**
+     * 提交任务，并发数达到上限时阻塞
+     * @param command
+     * @throws InterruptedException
+     * @throws RejectedExecutionException 已经关闭
+     */
+    public void execute(Runnable command) throws InterruptedException {
+        if (command == null) {
+            throw new NullPointerException();
+        }
+        ExecutorMetrics m = metrics;
+        Runnable task = m == null ? command : m.wrap(command);
+        if (state.get() != RUNNING) {
+            throw reject();
+        }
+        queueSize.incrementAndGet();
+        try {
+            permits.acquire();
+        } finally {
+            queueSize.decrementAndGet();
+        }
+        // 先增加计数再检查状态，shutdown()先修改状态再检查计数，两者至少有一个能看到对方
+        activeCount.incrementAndGet();
+        if (state.get() != RUNNING) {
+            taskDone();
+            throw reject();
+        }
+        Thread thread = threadFactory.newThread(() -> runTask(task));
+        threads.add(thread);
+        thread.start();
+    }
+
+    private void runTask(Runnable command) {
+        Thread current = Thread.currentThread();
+        try {
+            if (state.get() >= STOP) {
+                current.interrupt();
+            }
+            command.run();
+            completedTaskCount.increment();
+        } catch (RuntimeException | Error e) {
+            // 交给虚拟线程的UncaughtExceptionHandler处理
+            failedTaskCount.increment();
+            throw e;
+        } finally {
+            threads.remove(current);
+            taskDone();
+        }
+    }
+
+    private void taskDone() {
+        permits.release();
+        if (activeCount.decrementAndGet() == 0) {
+            tryTerminate();
+        }
+    }
+
+    /**
+     * 关闭，不再接受新任务，已经提交的任务会执行完
+     */
+    public void shutdown() {
+        advanceState(SHUTDOWN);
+        tryTerminate();
+    }
+
+    /**
+     * 立即关闭，中断所有正在执行的任务
+     * @return 没有排队的任务，总是返回空列表；等待许可的提交线程会收到RejectedExecutionException
+     */
+    public List<Runnable> shutdownNow() {
+        advanceState(STOP);
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+        tryTerminate();
+        return Collections.emptyList();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
+
+    public boolean isShutdown() {
+        return state.get() >= SHUTDOWN;
+    }
+
+    public boolean isTerminated() {
+        return state.get() == TERMINATED;
+    }
+
+    private void advanceState(int target) {
+        while (true) {
+            int s = state.get();
+            if (s >= target || state.compareAndSet(s, target)) {
+                return;
+            }
+        }
+    }
+
+    private void tryTerminate() {
+        int s = state.get();
+        if (s == RUNNING || s == TERMINATED || activeCount.get() != 0) {
+            return;
+        }
+        if (state.compareAndSet(s, TERMINATED)) {
+            terminated.countDown();
+            RecordingStream stream = pinningStream;
+            if (stream != null) {
+                stream.close();
+            }
+        }
+    }
+
+    /**
+     * 开启钉住诊断
+     *      订阅JFR的jdk.VirtualThreadPinned事件，只统计本执行器的虚拟线程(按线程名前缀区分)，执行器终止时自动关闭。
+     *      JFR事件在单独的线程中异步处理，对任务本身没有额外开销
+     * @param threshold 钉住超过该时间才记录
+     * @param listener 接收钉住时的线程名和调用栈，为null时只计数
+     */
+    public synchronized void enablePinningDiagnostics(Duration threshold, Consumer<String> listener) {
+        if (pinningStream != null) {
+            return;
+        }
+        String prefix = name + "-";
+        RecordingStream stream = new RecordingStream();
+        stream.enable("jdk.VirtualThreadPinned").withThreshold(threshold).withStackTrace();
+        stream.onEvent("jdk.VirtualThreadPinned", event -> {
+            RecordedThread thread = event.getThread();
+            if (thread == null || thread.getJavaName() == null || !thread.getJavaName().startsWith(prefix)) {
+                return;
+            }
+            pinnedCount.increment();
+            if (listener == null) {
+                return;
+            }
+            StringBuilder sb = new StringBuilder();
+            sb.append(thread.getJavaName()).append(" pinned for ").append(event.getDuration().toMillis()).append("ms");
+            RecordedStackTrace stackTrace = event.getStackTrace();
+            if (stackTrace != null) {
+                List<RecordedFrame> frames = stackTrace.getFrames();
+                for (int i = 0; i < frames.size() && i < MAX_PINNED_FRAMES; i++) {
+                    RecordedFrame frame = frames.get(i);
+                    sb.append("\n\tat ").append(frame.getMethod().getType().getName())
+                            .append('.').append(frame.getMethod().getName())
+                            .append(':').append(frame.getLineNumber());
+                }
+            }
+            listener.accept(sb.toString());
+        });
+        stream.startAsync();
+        pinningStream = stream;
+    }
+
+    /**
+     * 开启指标记录，之后提交的任务会被包装，记录排队时间和执行时间
+     * @return 多次调用返回同一个对象
+     */
+    public synchronized ExecutorMetrics enableMetrics() {
+        if (metrics == null) {
+            metrics = new ExecutorMetrics(this::getActiveCount, this::getActiveCount, this::getQueueSize);
+        }
+        return metrics;
+    }
+
+    /**
+     * @return 没有开启指标记录时返回null
+     */
+    public ExecutorMetrics getMetrics() {
+        return metrics;
+    }
+
+    private RejectedExecutionException reject() {
+        ExecutorMetrics m = metrics;
+        if (m != null) {
+            m.recordRejection();
+        }
+        return new RejectedExecutionException("executor is shutdown");
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * 正在执行的任务数
+     * @return
+     */
+    public int getActiveCount() {
+        return activeCount.get();
+    }
+
+    /**
+     * 等待并发许可的任务数
+     * @return
+     */
+    public int getQueueSize() {
+        return queueSize.get();
+    }
+
+    /**
+     * 正常执行完的任务数
+     * @return
+     */
+    public long getCompletedTaskCount() {
+        return completedTaskCount.sum();
+    }
+
+    /**
+     * 抛出异常的任务数
+     * @return
+     */
+    public long getFailedTaskCount() {
+        return failedTaskCount.sum();
+    }
+
+    /**
+     * 开启钉住诊断之后被钉住的次数
+     * @return
+     */
+    public long getPinnedCount() {
+        return pinnedCount.sum();
+    }
+
+}
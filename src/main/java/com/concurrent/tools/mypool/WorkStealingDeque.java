@@ -0,0 +1,122 @@
+package com.concurrent.tools.mypool;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 工作窃取双端队列(Chase-Lev)
+ *      只有所属的工作线程在底部push/pop，不需要加锁；其他线程从顶部steal，通过CAS修改top竞争。
+ *      只有队列中剩最后一个任务时，所属线程的pop才需要和窃取线程竞争。
+ *      数组容量是2的幂，满了由所属线程扩容，旧数组不清空，正在读取旧数组的窃取线程仍然能读到正确的任务。
+ */
+public final class WorkStealingDeque {
+
+    private static final int INITIAL_CAPACITY = 1 << 8;
+
+    private static final AtomicLongFieldUpdater<WorkStealingDeque> TOP_UPDATER =
+            AtomicLongFieldUpdater.newUpdater(WorkStealingDeque.class, "top");
+
+    private volatile AtomicReferenceArray<Runnable> array = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+
+    /**
+     * 下一个被窃取的位置
+     */
+    private volatile long top;
+
+    /**
+     * 下一个push的位置，只有所属线程修改。
+     * 使用volatile写，保证push之后再检查空闲线程时不会重排序，见MyThreadPool的唤醒协议
+     */
+    private volatile long bottom;
+
+    /**
+     * 所属线程在底部加入任务
+     * @param task
+     */
+    public void push(Runnable task) {
+        long b = bottom;
+        long t = top;
+        AtomicReferenceArray<Runnable> a = array;
+        if (b - t >= a.length() - 1) {
+            a = grow(a, t, b);
+        }
+        a.lazySet(index(a, b), task);
+        bottom = b + 1;
+    }
+
+    /**
+     * 所属线程从底部取出任务，后进先出，刚提交的子任务数据还在缓存中
+     * @return 队列为空时返回null
+     */
+    public Runnable pop() {
+        long b = bottom - 1;
+        AtomicReferenceArray<Runnable> a = array;
+        bottom = b;
+        long t = top;
+        if (t > b) {
+            // 队列为空，恢复bottom
+            bottom = b + 1;
+            return null;
+        }
+        int i = index(a, b);
+        Runnable task = a.get(i);
+        if (t == b) {
+            // 最后一个任务，和窃取线程竞争
+            if (!TOP_UPDATER.compareAndSet(this, t, t + 1)) {
+                task = null;
+            }
+            bottom = b + 1;
+        }
+        if (task != null) {
+            a.lazySet(i, null);
+        }
+        return task;
+    }
+
+    /**
+     * 其他线程从顶部窃取任务，先进先出，窃取到的通常是较大的任务
+     * @return 队列为空或者竞争失败时返回null
+     */
+    public Runnable steal() {
+        long t = top;
+        long b = bottom;
+        if (t >= b) {
+            return null;
+        }
+        AtomicReferenceArray<Runnable> a = array;
+        int i = index(a, t);
+        Runnable task = a.get(i);
+        if (task == null || !TOP_UPDATER.compareAndSet(this, t, t + 1)) {
+            return null;
+        }
+        a.compareAndSet(i, task, null);
+        return task;
+    }
+
+    /**
+     * 估算的任务数
+     * @return
+     */
+    public int size() {
+        long n = bottom - top;
+        return n <= 0 ? 0 : (int) Math.min(n, Integer.MAX_VALUE);
+    }
+
+    public boolean isEmpty() {
+        return bottom - top <= 0;
+    }
+
+    private AtomicReferenceArray<Runnable> grow(AtomicReferenceArray<Runnable> old, long t, long b) {
+        AtomicReferenceArray<Runnable> a = new AtomicReferenceArray<>(old.length() << 1);
+        for (long i = t; i < b; i++) {
+            a.lazySet(index(a, i), old.get(index(old, i)));
+        }
+        array = a;
+        return a;
+    }
+
+    private static int index(AtomicReferenceArray<Runnable> a, long i) {
+        return (int) i & (a.length() - 1);
+    }
+
+}
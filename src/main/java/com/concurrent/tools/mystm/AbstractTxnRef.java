@@ -0,0 +1,272 @@
+package com.concurrent.tools.mystm;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 支持事务的引用的基类
+ *      每个引用自带一个版本锁(versioned lock)：最低位表示是否被锁定，其余高位是版本号。
+ *      提交时只锁定写集中的引用，不相交的事务可以并行提交，不再依赖全局锁。
+ *      数据直接保存在子类中，基本类型的数据在事务中统一以long的形式传递，不需要装箱。
+ *      有快照读事务时，提交会把被覆盖的旧数据保留在历史链表中，长时间的只读事务可以读到它开始时刻的版本。
+ *      调用了{@link Txn#retry()}的事务会在它读过的引用上登记等待，引用被修改时只唤醒在它上面等待的线程。
+ *      注意：引用必须使用对象身份的equals/hashCode，不能使用lombok的@Data。
+ */
+public abstract class AbstractTxnRef {
+
+    /**
+     * ID生成器
+     */
+    private static final AtomicLong REF_SEQ = new AtomicLong(0);
+
+    /**
+     * 版本锁中表示已锁定的位
+     */
+    private static final long LOCKED = 1L;
+
+    /**
+     * 事务外读取遇到被锁定的数据时最多自旋的次数
+     */
+    private static final int ATOMIC_GET_SPINS = 64;
+
+    /**
+     * 自旋之后最多让出CPU的次数，再之后改为短暂挂起
+     */
+    private static final int ATOMIC_GET_YIELDS = 16;
+
+    /**
+     * 挂起时间的上限，不可撤销事务可能在持有锁期间执行IO，不能一直空转
+     */
+    private static final long ATOMIC_GET_MAX_PARK_NANOS = 1_000_000L;
+
+    private static final AtomicLongFieldUpdater<AbstractTxnRef> LOCK_UPDATER =
+            AtomicLongFieldUpdater.newUpdater(AbstractTxnRef.class, "lock");
+
+    private static final AtomicReferenceFieldUpdater<AbstractTxnRef, ConcurrentLinkedQueue<Object>> WAITERS_UPDATER =
+            newWaitersUpdater();
+
+    /**
+     * 唯一ID，提交时按ID顺序加锁，破坏循环等待条件
+     */
+    private final long id;
+
+    /**
+     * 版本锁，高位是版本号，最低位是锁标志
+     */
+    private volatile long lock;
+
+    /**
+     * 等待该引用发生变化的线程，或者异步事务的回调，第一次有等待者时才创建
+     */
+    private volatile ConcurrentLinkedQueue<Object> waiters;
+
+    /**
+     * 历史版本，最新的在前面，只在持有锁时修改
+     */
+    private volatile VersionNode history;
+
+    AbstractTxnRef() {
+        this.id = REF_SEQ.incrementAndGet();
+    }
+
+    /**
+     * 字段更新器只接受原始的Class，在这里转换成带泛型的类型
+     * @return
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static AtomicReferenceFieldUpdater<AbstractTxnRef, ConcurrentLinkedQueue<Object>> newWaitersUpdater() {
+        return (AtomicReferenceFieldUpdater) AtomicReferenceFieldUpdater.newUpdater(
+                AbstractTxnRef.class, ConcurrentLinkedQueue.class, "waiters");
+    }
+
+    /**
+     * 读取当前的引用类型数据，调用方需要通过前后两次读取版本锁来保证一致性
+     * @return
+     */
+    Object read() {
+        return null;
+    }
+
+    /**
+     * 读取当前的基本类型数据
+     * @return
+     */
+    long readBits() {
+        return 0L;
+    }
+
+    /**
+     * 写入数据，只能在持有锁时调用
+     * @param value 引用类型的数据
+     * @param bits 基本类型的数据
+     */
+    abstract void write(Object value, long bits);
+
+    /**
+     * 把基本类型的增量作用在数据上，也用于合并同一个事务中的多个增量
+     * @param bits
+     * @param delta
+     * @return
+     */
+    long commuteBits(long bits, long delta) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * 不在事务中读取基本类型数据，保证读到的是某个已提交的版本
+     *      数据被锁定时先自旋，再让出CPU，最后指数退避挂起
+     * @return
+     */
+    final long atomicGetBits() {
+        int spins = 0;
+        long parkNanos = 1_000L;
+        while (true) {
+            long pre = lock;
+            long bits = readBits();
+            if (!isLocked(pre) && pre == lock) {
+                return bits;
+            }
+            if (spins < ATOMIC_GET_SPINS) {
+                spins++;
+                Thread.onSpinWait();
+            } else if (spins < ATOMIC_GET_SPINS + ATOMIC_GET_YIELDS) {
+                spins++;
+                Thread.yield();
+            } else {
+                // 锁被长时间持有，退避挂起，避免占满CPU
+                LockSupport.parkNanos(parkNanos);
+                parkNanos = Math.min(parkNanos << 1, ATOMIC_GET_MAX_PARK_NANOS);
+            }
+        }
+    }
+
+    final long getId() {
+        return id;
+    }
+
+    /**
+     * 读取版本锁
+     * @return
+     */
+    final long getLock() {
+        return lock;
+    }
+
+    /**
+     * 尝试锁定，不会阻塞
+     * @return
+     */
+    final boolean tryLock() {
+        long cur = lock;
+        return !isLocked(cur) && LOCK_UPDATER.compareAndSet(this, cur, cur | LOCKED);
+    }
+
+    /**
+     * 释放锁，同时发布新的版本号
+     * @param newVersion
+     */
+    final void unlock(long newVersion) {
+        lock = newVersion << 1;
+    }
+
+    /**
+     * 释放锁，版本号不变
+     */
+    final void unlock() {
+        lock = lock & ~LOCKED;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "#" + id;
+    }
+
+    static boolean isLocked(long lock) {
+        return (lock & LOCKED) != 0;
+    }
+
+    static long versionOf(long lock) {
+        return lock >>> 1;
+    }
+
+    /**
+     * 登记等待该引用发生变化
+     * @param waiter 阻塞等待的线程，或者异步事务的回调(Runnable)
+     */
+    final void addWaiter(Object waiter) {
+        ConcurrentLinkedQueue<Object> queue = waiters;
+        if (queue == null) {
+            WAITERS_UPDATER.compareAndSet(this, null, new ConcurrentLinkedQueue<Object>());
+            queue = waiters;
+        }
+        queue.add(waiter);
+    }
+
+    final void removeWaiter(Object waiter) {
+        ConcurrentLinkedQueue<Object> queue = waiters;
+        if (queue != null) {
+            queue.remove(waiter);
+        }
+    }
+
+    /**
+     * 唤醒所有等待该引用的线程，执行异步事务的回调，发布新版本之后调用
+     *      等待者先登记再检查版本，提交的线程先发布版本再检查等待队列，所以不会丢失唤醒
+     */
+    final void signalWaiters() {
+        ConcurrentLinkedQueue<Object> queue = waiters;
+        if (queue != null && !queue.isEmpty()) {
+            for (Object waiter : queue) {
+                if (waiter instanceof Thread) {
+                    LockSupport.unpark((Thread) waiter);
+                } else {
+                    ((Runnable) waiter).run();
+                }
+            }
+        }
+    }
+
+    /**
+     * 写入新数据之前保留当前数据，只能在持有锁时调用
+     *      裁剪掉所有快照读事务都不再需要的历史：最小读版本只需要不大于它的最新版本，更旧的都可以丢弃
+     * @param minReadVersion 快照读事务中最小的读版本
+     * @param maxHistory 最多保留的历史版本数
+     */
+    final void pushHistory(long minReadVersion, int maxHistory) {
+        VersionNode node = new VersionNode(read(), readBits(), versionOf(lock), history);
+        history = node;
+        for (int n = 1; node != null; n++, node = node.prev) {
+            if (node.version <= minReadVersion || n >= maxHistory) {
+                node.prev = null;
+                break;
+            }
+        }
+    }
+
+    /**
+     * 没有快照读事务时丢弃全部历史，只能在持有锁时调用
+     */
+    final void clearHistory() {
+        if (history != null) {
+            history = null;
+        }
+    }
+
+    /**
+     * 查找不大于指定版本的最新历史版本
+     * @param readVersion
+     * @return 已经被裁剪时返回null
+     */
+    final VersionNode findHistory(long readVersion) {
+        for (VersionNode node = history; node != null; node = node.prev) {
+            if (node.version <= readVersion) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,34 @@
+package com.concurrent.tools.mystm;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 异步事务调用retry()之后的等待者，登记在读过的引用上，不占用线程
+ *      任意一个引用被修改时由提交的线程回调，只触发一次：从所有引用上注销，再重新调度事务
+ */
+final class AsyncRetryWaiter implements Runnable {
+
+    private final AtomicBoolean fired = new AtomicBoolean();
+
+    private final Runnable resume;
+
+    /**
+     * 登记过的引用，登记之前设置
+     */
+    AbstractTxnRef[] refs;
+
+    AsyncRetryWaiter(Runnable resume) {
+        this.resume = resume;
+    }
+
+    @Override
+    public void run() {
+        if (!fired.get() && fired.compareAndSet(false, true)) {
+            for (AbstractTxnRef ref : refs) {
+                ref.removeWaiter(this);
+            }
+            resume.run();
+        }
+    }
+
+}
@@ -0,0 +1,157 @@
+package com.concurrent.tools.mystm;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 异步事务，见{@link MyStmUtils#atomicAsync(TxnRunnable, Executor)}
+ *      每次执行都是executor中的一个任务，执行完业务逻辑和提交就返回，不在线程上等待：
+ *      1、中止后由{@link ContentionManager#backoffNanos(StmTxn)}决定延迟，延迟期间不占用线程
+ *      2、retry()之后在读过的引用上登记回调，数据被修改时才重新调度
+ *      3、升级为不可撤销事务时只尝试获取令牌，拿不到就延迟重试；令牌在同一次执行中获取和释放。
+ *         事务块中调用becomeIrrevocable()或者嵌套atomicIrrevocable()也是如此，拿不到令牌时中止，之后以不可撤销模式重新执行
+ *      事务对象属于这个异步事务，执行期间绑定到当前线程，事务块中嵌套的atomic()会加入它
+ * @param <T>
+ */
+final class AsyncTxnTask<T> implements Runnable {
+
+    /**
+     * 拿不到不可撤销令牌时的重试间隔
+     */
+    private static final long IRREVOCABLE_WAIT_NANOS = 50_000L;
+
+    private static final int NEW = 0;
+
+    private static final int RESTART = 1;
+
+    private static final int ESCALATE = 2;
+
+    private final TxnCallable<T> callable;
+
+    /**
+     * 用户传入的事务块，用于统计调用点
+     */
+    private final Object block;
+
+    private final Executor executor;
+
+    private final ContentionManager cm;
+
+    private final StmTxn txn = new StmTxn(true);
+
+    private final CompletableFuture<T> future = new CompletableFuture<>();
+
+    /**
+     * 下一次执行之前需要做的事，只在执行任务的线程中访问，任务之间通过executor建立happens-before
+     */
+    private int state = NEW;
+
+    AsyncTxnTask(TxnCallable<T> callable, Object block, Executor executor, ContentionManager cm) {
+        this.callable = callable;
+        this.block = block;
+        this.executor = executor;
+        this.cm = cm;
+    }
+
+    CompletableFuture<T> getFuture() {
+        return future;
+    }
+
+    @Override
+    public void run() {
+        StmTxn previous = MyStmUtils.bindThreadTxn(txn);
+        try {
+            attempt();
+        } finally {
+            MyStmUtils.bindThreadTxn(previous);
+        }
+    }
+
+    private void attempt() {
+        if (state == NEW) {
+            txn.begin(false);
+        } else if (state == ESCALATE) {
+            if (!txn.tryRestartIrrevocable()) {
+                schedule(IRREVOCABLE_WAIT_NANOS);
+                return;
+            }
+        } else {
+            txn.restart(false);
+        }
+
+        final StmStatistics statistics = MyStmUtils.getStatistics();
+        try {
+            T result = callable.call(txn);
+            boolean irrevocable = txn.isIrrevocable();
+            if (txn.commit()) {
+                statistics.onCommit(txn, block, irrevocable);
+                complete(result, null);
+                return;
+            }
+        } catch (TxnAbortException e) {
+            // 中止，延迟之后重试
+        } catch (TxnRetryException e) {
+            statistics.onRetryWait(block);
+            awaitChange();
+            return;
+        } catch (Throwable e) {
+            complete(null, e);
+            return;
+        }
+
+        statistics.onAbort(txn, block, false);
+        txn.restart(true);
+        if (txn.isIrrevocableRequested() || txn.getAbortCount() >= MyStmUtils.getMaxRetries()) {
+            state = ESCALATE;
+            schedule(0L);
+        } else {
+            state = RESTART;
+            schedule(cm.backoffNanos(txn));
+        }
+    }
+
+    /**
+     * 登记回调之后立即返回，读过的数据发生变化时重新调度，不可撤销事务仍然以不可撤销模式重新执行
+     */
+    private void awaitChange() {
+        state = txn.isIrrevocable() ? ESCALATE : RESTART;
+        AsyncRetryWaiter waiter = new AsyncRetryWaiter(() -> schedule(0L));
+        try {
+            if (txn.awaitChangeAsync(waiter)) {
+                waiter.run();
+            }
+        } catch (RuntimeException e) {
+            complete(null, e);
+        }
+    }
+
+    /**
+     * 调度下一次执行
+     * @param delayNanos
+     */
+    void schedule(long delayNanos) {
+        try {
+            if (delayNanos <= 0L) {
+                executor.execute(this);
+            } else {
+                CompletableFuture.delayedExecutor(delayNanos, TimeUnit.NANOSECONDS, executor).execute(this);
+            }
+        } catch (RejectedExecutionException e) {
+            complete(null, e);
+        }
+    }
+
+    private void complete(T result, Throwable error) {
+        txn.release();
+        cm.onComplete(txn);
+        txn.end();
+        if (error == null) {
+            future.complete(result);
+        } else {
+            future.completeExceptionally(error);
+        }
+    }
+
+}
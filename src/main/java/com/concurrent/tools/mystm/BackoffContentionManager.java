@@ -0,0 +1,76 @@
+package com.concurrent.tools.mystm;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 随机指数退避
+ *      每中止一次，退避时间的上限翻倍，直到最大值，实际退避时间在上限内随机，避免冲突的事务再次同时重试。
+ *      前几次中止一般是偶发冲突，直接自旋一下就重试。
+ */
+public class BackoffContentionManager implements ContentionManager {
+
+    /**
+     * 中止次数不超过该值时只自旋，不挂起线程
+     */
+    private static final int SPIN_ABORTS = 2;
+
+    /**
+     * 最小退避时间上限
+     */
+    private final long minBackoffNanos;
+
+    /**
+     * 最大退避时间上限
+     */
+    private final long maxBackoffNanos;
+
+    public BackoffContentionManager() {
+        this(TimeUnit.MICROSECONDS.toNanos(1), TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    public BackoffContentionManager(long minBackoffNanos, long maxBackoffNanos) {
+        if (minBackoffNanos <= 0 || maxBackoffNanos < minBackoffNanos) {
+            throw new IllegalArgumentException();
+        }
+        this.minBackoffNanos = minBackoffNanos;
+        this.maxBackoffNanos = maxBackoffNanos;
+    }
+
+    @Override
+    public void onAbort(StmTxn txn) {
+        long nanos = backoffNanos(txn);
+        if (nanos == 0L) {
+            Thread.onSpinWait();
+            return;
+        }
+        LockSupport.parkNanos(nanos);
+    }
+
+    /**
+     * 前几次中止立即重试，之后在退避上限内随机等待
+     * @param txn
+     * @return
+     */
+    @Override
+    public long backoffNanos(StmTxn txn) {
+        if (txn.getAbortCount() <= SPIN_ABORTS) {
+            return 0L;
+        }
+        long bound = backoffBound(txn);
+        return bound > 0 ? ThreadLocalRandom.current().nextLong(bound) + 1 : 0L;
+    }
+
+    /**
+     * 计算本次退避时间的上限
+     * @param txn
+     * @return
+     */
+    protected long backoffBound(StmTxn txn) {
+        // 防止移位溢出
+        int shift = Math.min(txn.getAbortCount() - SPIN_ABORTS, 30);
+        return Math.min(minBackoffNanos << shift, maxBackoffNanos);
+    }
+
+}
@@ -0,0 +1,32 @@
+package com.concurrent.tools.mystm;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * 某个调用点(传给atomic()的事务块)的统计
+ */
+@Data
+@AllArgsConstructor
+public class CallSiteStatistics {
+
+    /**
+     * 事务块的类名，lambda是它所在的类名加上$$Lambda和每个lambda不同的后缀，例如Account$$Lambda/0x000001f00104a000
+     */
+    private final String name;
+
+    private final long commits;
+
+    private final long aborts;
+
+    private final long retryWaits;
+
+    /**
+     * 平均每次提交中止的次数
+     * @return
+     */
+    public double getAbortsPerCommit() {
+        return commits == 0L ? 0.0 : (double) aborts / commits;
+    }
+
+}
@@ -0,0 +1,34 @@
+package com.concurrent.tools.mystm;
+
+/**
+ * 冲突管理器，决定事务中止之后如何重试
+ *      事务中止后立即重试，在热点数据上很容易形成活锁，所有CPU都在做无用功。
+ *      冲突管理器可以通过退避、优先级等策略让冲突的事务错开执行。
+ * @see BackoffContentionManager
+ * @see KarmaContentionManager
+ * @see TimestampContentionManager
+ */
+public interface ContentionManager {
+
+    /**
+     * 事务中止之后、重试之前调用，可以在这里退避等待
+     * @param txn 中止的事务，可以通过{@link StmTxn#getAbortCount()}获取已经中止的次数
+     */
+    void onAbort(StmTxn txn);
+
+    /**
+     * 异步事务中止之后调用，不能阻塞当前线程，返回延迟多久之后再重试，见{@link MyStmUtils#atomicAsync(TxnRunnable)}
+     * @param txn
+     * @return 延迟的纳秒数，0表示立即重试
+     */
+    default long backoffNanos(StmTxn txn) {
+        return 0L;
+    }
+
+    /**
+     * 事务结束之后调用，包括提交成功和业务逻辑抛出异常
+     * @param txn
+     */
+    default void onComplete(StmTxn txn) {}
+
+}
@@ -0,0 +1,25 @@
+package com.concurrent.tools.mystm;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * 导致事务冲突的数据的统计
+ */
+@Data
+@AllArgsConstructor
+public class HotRefStatistics {
+
+    /**
+     * 引用的描述，类名#ID
+     */
+    private final String name;
+
+    private final long conflicts;
+
+    /**
+     * 引用本身，可以与业务对象中的引用比较找到热点数据，已经被回收时为null
+     */
+    private final AbstractTxnRef ref;
+
+}
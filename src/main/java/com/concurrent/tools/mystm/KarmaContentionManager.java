@@ -0,0 +1,25 @@
+package com.concurrent.tools.mystm;
+
+/**
+ * 基于karma(已投入工作量)的优先级退避
+ *      事务每次尝试读写的数据个数都会累加到karma中，karma越高说明事务已经浪费的工作越多，
+ *      退避时间越短，优先获得重试的机会，避免大事务一直被小事务饿死。
+ */
+public class KarmaContentionManager extends BackoffContentionManager {
+
+    public KarmaContentionManager() {
+        super();
+    }
+
+    public KarmaContentionManager(long minBackoffNanos, long maxBackoffNanos) {
+        super(minBackoffNanos, maxBackoffNanos);
+    }
+
+    @Override
+    protected long backoffBound(StmTxn txn) {
+        // karma每翻一倍，退避时间上限减半
+        int priority = 63 - Long.numberOfLeadingZeros(txn.getKarma() + 1);
+        return super.backoffBound(txn) >> Math.min(priority, 62);
+    }
+
+}
@@ -0,0 +1,77 @@
+package com.concurrent.tools.mystm;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 以2的幂划分区间的直方图，记录只需要一次LongAdder累加
+ *      第0个区间是0，第i个区间是[2^(i-1), 2^i)
+ */
+final class LogHistogram {
+
+    static final int BUCKETS = 64;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+    LogHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    void record(long value) {
+        buckets[bucketOf(value)].increment();
+    }
+
+    long[] snapshot() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return counts;
+    }
+
+    void reset() {
+        for (LongAdder bucket : buckets) {
+            bucket.reset();
+        }
+    }
+
+    static int bucketOf(long value) {
+        return value <= 0L ? 0 : 64 - Long.numberOfLeadingZeros(value);
+    }
+
+    /**
+     * 第i个区间的上界(不包含)
+     * @param bucket
+     * @return
+     */
+    static long upperBound(int bucket) {
+        return bucket == 0 ? 1L : bucket >= 63 ? Long.MAX_VALUE : 1L << bucket;
+    }
+
+    /**
+     * 估算百分位数，返回所在区间的上界
+     * @param counts
+     * @param percentile 0到100
+     * @return 没有数据时返回0
+     */
+    static long percentile(long[] counts, double percentile) {
+        long total = 0L;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0L) {
+            return 0L;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0L;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(counts.length - 1);
+    }
+
+}
@@ -1,34 +1,342 @@
 package com.concurrent.tools.mystm;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
 /**
  * STM
+ *      提交时不再使用全局锁，而是由每个TxnRef自带的版本锁保证原子性，见{@link StmTxn#commit()}
+ *      事务中止后由{@link ContentionManager}决定如何退避，中止次数超过重试预算后升级为不可撤销事务，保证一定能完成
+ *      事务对象按线程复用，稳定运行时atomic()除了提交的新值之外不分配内存
+ *      事务中调用{@link Txn#retry()}会阻塞当前线程，直到它读过的数据被其他事务修改，用来代替轮询
+ *      在事务中再次调用atomic()会加入外层事务，嵌套方式见{@link NestingMode}
+ *      atomicAsync()在线程池中异步执行事务，等待期间不占用线程
  */
 public final class MyStmUtils {
 
     /**
-     * 提交数据需要用到的全局锁
+     * 默认的重试预算
+     */
+    public static final int DEFAULT_MAX_RETRIES = 64;
+
+    /**
+     * 冲突管理器
+     */
+    private static volatile ContentionManager contentionManager = new BackoffContentionManager();
+
+    /**
+     * 重试预算，中止次数达到该值后升级为不可撤销事务
+     */
+    private static volatile int maxRetries = DEFAULT_MAX_RETRIES;
+
+    /**
+     * 嵌套事务的执行方式
+     */
+    private static volatile NestingMode nestingMode = NestingMode.CLOSED;
+
+    /**
+     * 每个线程复用的事务对象
+     */
+    private static final ThreadLocal<StmTxn> THREAD_TXN = ThreadLocal.withInitial(StmTxn::new);
+
+    /**
+     * 运行统计
      */
-    public static final Object COMMIT_LOCK = new Object();
+    private static final StmStatistics STATISTICS = new StmStatistics();
 
     private MyStmUtils() {}
 
     /**
      * 原子化提交方法
+     *      在事务中调用时加入当前线程正在执行的事务，随外层事务一起提交
      * @param runnable
      */
     public static void atomic(TxnRunnable runnable) {
-        // 是否提交成功
-        boolean committed = false;
-
-        // 如果没有提交成功，则一直重试
-        while (!committed) {
-            // 创建新的事务
-            StmTxn txn = new StmTxn();
-            // 执行业务逻辑
+        StmTxn txn = THREAD_TXN.get();
+        if (txn.isActive()) {
+            atomicNested(txn, runnable);
+            return;
+        }
+        final ContentionManager cm = contentionManager;
+        // 开始新的事务，重试时复用
+        txn.begin(false);
+        try {
+            // 如果没有提交成功，则一直重试
+            while (true) {
+                try {
+                    // 执行业务逻辑，读取到不一致的数据时会立即中止
+                    runnable.run(txn);
+                    // 提交事务，提交之后事务已经退出不可撤销模式
+                    boolean irrevocable = txn.isIrrevocable();
+                    if (txn.commit()) {
+                        STATISTICS.onCommit(txn, runnable, irrevocable);
+                        return;
+                    }
+                } catch (TxnAbortException e) {
+                    // 中止，重试
+                } catch (TxnRetryException e) {
+                    // 阻塞到读过的数据发生变化再重新执行，不可撤销事务仍然以不可撤销模式执行
+                    STATISTICS.onRetryWait(runnable);
+                    boolean irrevocable = txn.isIrrevocable();
+                    txn.awaitChange();
+                    if (irrevocable) {
+                        txn.restartIrrevocable(false);
+                    } else {
+                        txn.restart(false);
+                    }
+                    continue;
+                }
+                STATISTICS.onAbort(txn, runnable, false);
+                backoffOrEscalate(cm, txn);
+            }
+        } finally {
+            txn.release();
+            cm.onComplete(txn);
+            txn.end();
+        }
+    }
+
+    /**
+     * 异步执行事务，使用ForkJoinPool.commonPool()
+     * @param runnable
+     * @return
+     */
+    public static CompletableFuture<Void> atomicAsync(TxnRunnable runnable) {
+        return atomicAsync(runnable, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * 异步执行事务
+     *      每次执行都是executor中的一个短任务，中止后的退避、retry()的等待和获取不可撤销令牌都不占用线程，
+     *      也不会在持有监视器锁时阻塞，适合在虚拟线程或者CompletableFuture流水线中使用，大量事务可以共享少量线程。
+     *      异步事务是独立的事务，在其他事务中调用时不会加入外层事务
+     * @param runnable
+     * @param executor 执行事务的线程池
+     * @return 事务提交后完成，业务逻辑抛出异常时以该异常完成
+     */
+    public static CompletableFuture<Void> atomicAsync(TxnRunnable runnable, Executor executor) {
+        AsyncTxnTask<Void> task = new AsyncTxnTask<>(txn -> {
+            runnable.run(txn);
+            return null;
+        }, runnable, executor, contentionManager);
+        task.schedule(0L);
+        return task.getFuture();
+    }
+
+    /**
+     * 异步执行有返回值的事务，使用ForkJoinPool.commonPool()
+     * @param callable
+     * @param <T>
+     * @return
+     */
+    public static <T> CompletableFuture<T> supplyAtomicAsync(TxnCallable<T> callable) {
+        return supplyAtomicAsync(callable, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * 异步执行有返回值的事务，见{@link #atomicAsync(TxnRunnable, Executor)}
+     * @param callable
+     * @param executor
+     * @param <T>
+     * @return 以最后一次成功提交时的返回值完成
+     */
+    public static <T> CompletableFuture<T> supplyAtomicAsync(TxnCallable<T> callable, Executor executor) {
+        AsyncTxnTask<T> task = new AsyncTxnTask<>(callable, callable, executor, contentionManager);
+        task.schedule(0L);
+        return task.getFuture();
+    }
+
+    /**
+     * 不可撤销事务
+     *      先拿到不可撤销令牌，访问数据时立即锁定并持有到提交，一定在第一次执行时提交成功，
+     *      事务块中可以执行写审计日志等不能重复执行的操作。同一时刻最多只有一个不可撤销事务，
+     *      与它访问的数据不冲突的事务仍然可以并发提交。事务块中不能调用{@link Txn#retry()}。
+     *      在事务中调用时把当前事务升级为不可撤销事务，见{@link Txn#becomeIrrevocable()}
+     * @param runnable
+     */
+    public static void atomicIrrevocable(TxnRunnable runnable) {
+        StmTxn txn = THREAD_TXN.get();
+        if (txn.isActive()) {
+            txn.becomeIrrevocable();
             runnable.run(txn);
-            // 提交事务
-            committed = txn.commit();
+            return;
+        }
+        final ContentionManager cm = contentionManager;
+        txn.begin(false);
+        try {
+            txn.beginIrrevocable();
+            runnable.run(txn);
+            txn.commit();
+            STATISTICS.onCommit(txn, runnable, true);
+        } finally {
+            txn.release();
+            cm.onComplete(txn);
+            txn.end();
+        }
+    }
+
+    /**
+     * 只读事务
+     *      不记录读集，不加锁，提交时不需要校验，读到的是事务开始时刻的一致快照。
+     *      执行期间写事务会保留被覆盖的历史版本，读到更新的数据时从历史中读取，长时间的查询通常一次就能完成，也不会阻塞写事务。
+     *      在只读事务中修改数据会抛出IllegalStateException，在事务中调用时直接在当前事务中执行
+     * @param callable
+     * @param <T>
+     * @return
+     */
+    public static <T> T atomicReadOnly(TxnCallable<T> callable) {
+        StmTxn txn = THREAD_TXN.get();
+        if (txn.isActive()) {
+            return callable.call(txn);
+        }
+        final ContentionManager cm = contentionManager;
+        txn.begin(true);
+        try {
+            while (true) {
+                try {
+                    T result = callable.call(txn);
+                    boolean irrevocable = txn.isIrrevocable();
+                    txn.commit();
+                    STATISTICS.onCommit(txn, callable, irrevocable);
+                    return result;
+                } catch (TxnAbortException e) {
+                    // 读到了读版本之后提交的数据，使用新的快照重试
+                }
+                STATISTICS.onAbort(txn, callable, false);
+                backoffOrEscalate(cm, txn);
+            }
+        } finally {
+            txn.release();
+            cm.onComplete(txn);
+            txn.end();
+        }
+    }
+
+    /**
+     * 在外层事务中执行内层事务块
+     *      只读事务和不可撤销事务不会因为冲突而中止，直接扁平执行。
+     *      闭合嵌套时，内层冲突只回滚内层的读写，延长读版本成功后退避并重新执行内层；
+     *      外层读过的数据已经失效、超过重试预算或者内层要求升级为不可撤销事务时，把中止交给外层，由外层退避或升级为不可撤销事务
+     * @param txn
+     * @param runnable
+     */
+    private static void atomicNested(StmTxn txn, TxnRunnable runnable) {
+        if (nestingMode == NestingMode.FLAT || txn.isReadOnly() || txn.isIrrevocable()) {
+            runnable.run(txn);
+            return;
+        }
+        final ContentionManager cm = contentionManager;
+        while (true) {
+            int mark = txn.beginNested();
+            try {
+                runnable.run(txn);
+                return;
+            } catch (TxnAbortException e) {
+                txn.rollbackNested(mark);
+                // 升级失败时整个事务都要以不可撤销模式重新执行，只重新执行内层没有意义
+                if (txn.isIrrevocableRequested() || txn.getAbortCount() + 1 >= maxRetries || !txn.extend()) {
+                    throw e;
+                }
+                STATISTICS.onAbort(txn, runnable, true);
+                txn.nestedAbort();
+            } catch (TxnRetryException e) {
+                // 整个事务阻塞等待，需要保留内层的读集
+                throw e;
+            } catch (RuntimeException | Error e) {
+                txn.rollbackNested(mark);
+                throw e;
+            } finally {
+                txn.endNested();
+            }
+            cm.onAbort(txn);
+        }
+    }
+
+    /**
+     * 把事务绑定到当前线程，异步事务执行期间使用，嵌套的atomic()会加入它
+     * @param txn
+     * @return 原来绑定的事务，执行完之后恢复
+     */
+    static StmTxn bindThreadTxn(StmTxn txn) {
+        StmTxn previous = THREAD_TXN.get();
+        THREAD_TXN.set(txn);
+        return previous;
+    }
+
+    /**
+     * 中止后退避，并根据重试预算决定是否升级为不可撤销事务
+     * @param cm
+     * @param txn
+     */
+    private static void backoffOrEscalate(ContentionManager cm, StmTxn txn) {
+        // 升级为不可撤销事务失败时，直接以不可撤销模式重新执行
+        if (txn.isIrrevocableRequested() || txn.getAbortCount() + 1 >= maxRetries) {
+            txn.restartIrrevocable(true);
+        } else {
+            txn.restart(true);
+            cm.onAbort(txn);
+        }
+    }
+
+    /**
+     * 运行统计，默认开启
+     * @return
+     */
+    public static StmStatistics getStatistics() {
+        return STATISTICS;
+    }
+
+    public static ContentionManager getContentionManager() {
+        return contentionManager;
+    }
+
+    public static void setContentionManager(ContentionManager contentionManager) {
+        if (contentionManager == null) {
+            throw new NullPointerException();
+        }
+        MyStmUtils.contentionManager = contentionManager;
+    }
+
+    public static int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * 设置重试预算，设置为Integer.MAX_VALUE表示永远不升级为不可撤销事务
+     * @param maxRetries
+     */
+    public static void setMaxRetries(int maxRetries) {
+        if (maxRetries < 1) {
+            throw new IllegalArgumentException();
+        }
+        MyStmUtils.maxRetries = maxRetries;
+    }
+
+    public static NestingMode getNestingMode() {
+        return nestingMode;
+    }
+
+    public static void setNestingMode(NestingMode nestingMode) {
+        if (nestingMode == null) {
+            throw new NullPointerException();
+        }
+        MyStmUtils.nestingMode = nestingMode;
+    }
+
+    public static int getMaxHistory() {
+        return SnapshotRegistry.getMaxHistory();
+    }
+
+    /**
+     * 设置每个引用最多保留的历史版本数，超过后只读事务读不到足够旧的版本时仍然会中止重试
+     * @param maxHistory
+     */
+    public static void setMaxHistory(int maxHistory) {
+        if (maxHistory < 1) {
+            throw new IllegalArgumentException();
         }
+        SnapshotRegistry.setMaxHistory(maxHistory);
     }
 
 }
@@ -0,0 +1,20 @@
+package com.concurrent.tools.mystm;
+
+/**
+ * 在事务中再次调用{@link MyStmUtils#atomic(TxnRunnable)}时的嵌套方式
+ *      两种方式下内层事务都加入外层事务，随外层事务一起提交，保证整体的原子性
+ */
+public enum NestingMode {
+
+    /**
+     * 扁平嵌套，内层事务块直接在外层事务中执行，任何冲突都重新执行整个外层事务
+     */
+    FLAT,
+
+    /**
+     * 闭合嵌套，内层事务块冲突时只撤销内层的修改，延长读版本之后只重新执行内层事务块，
+     * 外层读过的数据已经失效时才重新执行整个外层事务。内层抛出异常时也会撤销内层的修改
+     */
+    CLOSED
+
+}
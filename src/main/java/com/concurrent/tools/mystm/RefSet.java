@@ -0,0 +1,140 @@
+package com.concurrent.tools.mystm;
+
+/**
+ * 事务的读集/写集
+ *      使用按引用ID排序的数组代替HashMap：查找使用二分查找，不需要装箱和计算hashCode，
+ *      提交时写集已经是按ID有序的，可以直接按顺序加锁。数组在事务之间复用，稳定运行时不分配内存。
+ *      引用类型的数据保存在values中，基本类型的数据保存在bits中，不需要装箱。
+ *      写集中的可交换操作，values保存引用类型的操作函数，bits保存基本类型的增量。
+ */
+final class RefSet {
+
+    /**
+     * 默认容量，覆盖大多数只涉及2~8个TxnRef的事务
+     */
+    private static final int DEFAULT_CAPACITY = 8;
+
+    /**
+     * 清空时超过该容量就缩回默认容量，避免一次大事务让线程一直持有大数组
+     */
+    private static final int MAX_RETAINED_CAPACITY = 1024;
+
+    AbstractTxnRef[] refs = new AbstractTxnRef[DEFAULT_CAPACITY];
+
+    Object[] values = new Object[DEFAULT_CAPACITY];
+
+    long[] bits = new long[DEFAULT_CAPACITY];
+
+    /**
+     * 是否是延迟到提交时才执行的可交换操作
+     */
+    boolean[] commutes = new boolean[DEFAULT_CAPACITY];
+
+    int size;
+
+    /**
+     * 二分查找
+     * @param ref
+     * @return 找到时返回下标，否则返回 -(插入位置) - 1
+     */
+    int indexOf(AbstractTxnRef ref) {
+        long id = ref.getId();
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midId = refs[mid].getId();
+            if (midId < id) {
+                low = mid + 1;
+            } else if (midId > id) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * 在指定位置插入，保持有序
+     * @param index
+     * @param ref
+     * @param value
+     * @param bits
+     * @param commute
+     */
+    void insert(int index, AbstractTxnRef ref, Object value, long bits, boolean commute) {
+        if (size == refs.length) {
+            grow();
+        }
+        int moved = size - index;
+        if (moved > 0) {
+            System.arraycopy(refs, index, refs, index + 1, moved);
+            System.arraycopy(values, index, values, index + 1, moved);
+            System.arraycopy(this.bits, index, this.bits, index + 1, moved);
+            System.arraycopy(commutes, index, commutes, index + 1, moved);
+        }
+        refs[index] = ref;
+        values[index] = value;
+        this.bits[index] = bits;
+        commutes[index] = commute;
+        size++;
+    }
+
+    /**
+     * 删除指定位置的数据，保持有序
+     * @param index
+     */
+    void remove(int index) {
+        int moved = size - index - 1;
+        if (moved > 0) {
+            System.arraycopy(refs, index + 1, refs, index, moved);
+            System.arraycopy(values, index + 1, values, index, moved);
+            System.arraycopy(bits, index + 1, bits, index, moved);
+            System.arraycopy(commutes, index + 1, commutes, index, moved);
+        }
+        size--;
+        refs[size] = null;
+        values[size] = null;
+    }
+
+    boolean contains(AbstractTxnRef ref) {
+        return indexOf(ref) >= 0;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void clear() {
+        if (refs.length > MAX_RETAINED_CAPACITY) {
+            refs = new AbstractTxnRef[DEFAULT_CAPACITY];
+            values = new Object[DEFAULT_CAPACITY];
+            bits = new long[DEFAULT_CAPACITY];
+            commutes = new boolean[DEFAULT_CAPACITY];
+        } else {
+            for (int i = 0; i < size; i++) {
+                refs[i] = null;
+                values[i] = null;
+            }
+        }
+        size = 0;
+    }
+
+    private void grow() {
+        int capacity = refs.length << 1;
+        AbstractTxnRef[] newRefs = new AbstractTxnRef[capacity];
+        Object[] newValues = new Object[capacity];
+        long[] newBits = new long[capacity];
+        boolean[] newCommutes = new boolean[capacity];
+        System.arraycopy(refs, 0, newRefs, 0, size);
+        System.arraycopy(values, 0, newValues, 0, size);
+        System.arraycopy(bits, 0, newBits, 0, size);
+        System.arraycopy(commutes, 0, newCommutes, 0, size);
+        refs = newRefs;
+        values = newValues;
+        bits = newBits;
+        commutes = newCommutes;
+    }
+
+}
@@ -0,0 +1,12 @@
+package com.concurrent.tools.mystm;
+
+/**
+ * 事务在{@link Txn#retry()}阻塞等待时线程被中断
+ */
+public class RetryInterruptedException extends RuntimeException {
+
+    public RetryInterruptedException() {
+        super("interrupted while waiting in retry()");
+    }
+
+}
@@ -0,0 +1,97 @@
+package com.concurrent.tools.mystm;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 正在执行的快照读事务的登记表
+ *      每个快照读事务占用一个槽位，槽位中保存读版本+1，0表示空闲。
+ *      写事务提交时扫描所有槽位得到最小的读版本，只有存在快照读事务才保留历史版本，并裁剪不再需要的历史。
+ *      不使用全局的计数器：每个只读事务都要修改它，又把一个所有线程争用的缓存行放回了只读事务的快速路径上，
+ *      槽位之间有填充，登记和注销只修改自己的槽位，扫描的代价由写事务承担。
+ *      快照读事务先登记再读取全局版本时钟，写事务先递增全局版本时钟再扫描槽位，
+ *      所以写事务要么看到登记，要么快照读事务的读版本不小于写版本，不需要这次的历史
+ */
+final class SnapshotRegistry {
+
+    /**
+     * 槽位数量，槽位用完时快照读事务退化为普通的只读事务
+     */
+    private static final int SLOTS = 64;
+
+    /**
+     * 槽位间隔，避免不同槽位共享缓存行
+     */
+    private static final int STRIDE = 8;
+
+    static final int NO_SLOT = -1;
+
+    /**
+     * 没有快照读事务时{@link #minReadVersion()}的返回值
+     */
+    static final long NO_READERS = Long.MAX_VALUE;
+
+    /**
+     * 默认保留的最大历史版本数
+     */
+    static final int DEFAULT_MAX_HISTORY = 32;
+
+    private static final AtomicLongArray SLOT_VERSIONS = new AtomicLongArray(SLOTS * STRIDE);
+
+    private static volatile int maxHistory = DEFAULT_MAX_HISTORY;
+
+    private SnapshotRegistry() {}
+
+    /**
+     * 登记快照读事务，登记后再读取全局版本时钟作为读版本，然后调用{@link #publish(int, long)}
+     *      登记时先占用读版本0，保证发布读版本之前提交的写事务保留全部历史
+     * @return 槽位，没有空闲槽位时返回NO_SLOT
+     */
+    static int register() {
+        int start = (int) (Thread.currentThread().threadId() % SLOTS);
+        for (int i = 0; i < SLOTS; i++) {
+            int slot = ((start + i) % SLOTS) * STRIDE;
+            if (SLOT_VERSIONS.get(slot) == 0L && SLOT_VERSIONS.compareAndSet(slot, 0L, 1L)) {
+                return slot;
+            }
+        }
+        return NO_SLOT;
+    }
+
+    /**
+     * 发布读版本，重新开始时读版本只会增大
+     * @param slot
+     * @param readVersion
+     */
+    static void publish(int slot, long readVersion) {
+        SLOT_VERSIONS.set(slot, readVersion + 1);
+    }
+
+    static void unregister(int slot) {
+        SLOT_VERSIONS.set(slot, 0L);
+    }
+
+    /**
+     * 所有快照读事务中最小的读版本，写事务递增全局版本时钟之后调用
+     *      刚登记还没有发布读版本的槽位是1，读版本按0计算
+     * @return 没有快照读事务时返回{@link #NO_READERS}
+     */
+    static long minReadVersion() {
+        long min = NO_READERS;
+        for (int i = 0; i < SLOTS * STRIDE; i += STRIDE) {
+            long v = SLOT_VERSIONS.get(i);
+            if (v != 0L && v - 1 < min) {
+                min = v - 1;
+            }
+        }
+        return min;
+    }
+
+    static int getMaxHistory() {
+        return maxHistory;
+    }
+
+    static void setMaxHistory(int maxHistory) {
+        SnapshotRegistry.maxHistory = maxHistory;
+    }
+
+}
@@ -0,0 +1,381 @@
+package com.concurrent.tools.mystm;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * STM运行统计
+ *      计数使用LongAdder，热路径上没有锁，也没有共享的缓存行竞争。
+ *      调用点以传给atomic()的事务块的类区分，每个lambda对应一个类；
+ *      热点数据是读取校验失败、提交校验失败或者加锁失败的引用，用于找到拖慢吞吐量的数据。
+ *      通过{@link MyStmUtils#getStatistics()}获取，可以调用{@link #snapshot()}轮询，也可以注册到JMX
+ */
+public final class StmStatistics implements StmStatisticsMXBean {
+
+    /**
+     * JMX中的名称
+     */
+    public static final String OBJECT_NAME = "com.concurrent.tools.mystm:type=StmStatistics";
+
+    /**
+     * 最多记录的调用点和热点数据，避免无限增长。
+     * 表满时先丢弃已经被回收的引用，仍然超过3/4时再丢弃计数最少的1/4，新出现的调用点和热点数据仍然能被记录
+     */
+    private static final int MAX_CALL_SITES = 1024;
+
+    private static final int MAX_HOT_REFS = 4096;
+
+    /**
+     * 快照中默认保留的热点数据数量
+     */
+    private static final int DEFAULT_TOP_REFS = 20;
+
+    private volatile boolean enabled = true;
+
+    private final LongAdder commits = new LongAdder();
+
+    private final LongAdder readOnlyCommits = new LongAdder();
+
+    private final LongAdder aborts = new LongAdder();
+
+    private final LongAdder nestedAborts = new LongAdder();
+
+    private final LongAdder retryWaits = new LongAdder();
+
+    private final LongAdder irrevocableCommits = new LongAdder();
+
+    private final LogHistogram attempts = new LogHistogram();
+
+    private final LogHistogram readSetSizes = new LogHistogram();
+
+    private final LogHistogram writeSetSizes = new LogHistogram();
+
+    private final LogHistogram commitLatency = new LogHistogram();
+
+    private final ConcurrentHashMap<Class<?>, CallSiteCounter> callSites = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<Long, HotRefCounter> hotRefs = new ConcurrentHashMap<>();
+
+    /**
+     * 是否有线程正在淘汰调用点或者热点数据
+     */
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    StmStatistics() {}
+
+    /**
+     * 事务提交成功
+     * @param txn
+     * @param block 事务块
+     * @param irrevocable 是否以不可撤销模式提交，提交之后事务已经退出不可撤销模式
+     */
+    void onCommit(StmTxn txn, Object block, boolean irrevocable) {
+        if (!enabled) {
+            return;
+        }
+        if (txn.isReadOnly()) {
+            readOnlyCommits.increment();
+        } else {
+            commits.increment();
+            readSetSizes.record(txn.getReadSetSize());
+            writeSetSizes.record(txn.getWriteSetSize());
+        }
+        if (irrevocable) {
+            irrevocableCommits.increment();
+        }
+        attempts.record(txn.getAbortCount() + 1L);
+        commitLatency.record(System.nanoTime() - txn.getStartNanos());
+        callSite(block).commits.increment();
+    }
+
+    /**
+     * 事务因为冲突而中止
+     * @param txn
+     * @param block
+     * @param nested 是否是闭合嵌套的内层事务块中止
+     */
+    void onAbort(StmTxn txn, Object block, boolean nested) {
+        if (!enabled) {
+            return;
+        }
+        aborts.increment();
+        if (nested) {
+            nestedAborts.increment();
+        }
+        callSite(block).aborts.increment();
+        AbstractTxnRef ref = txn.getConflictRef();
+        if (ref != null) {
+            HotRefCounter counter = hotRefs.get(ref.getId());
+            if (counter == null) {
+                if (hotRefs.size() >= MAX_HOT_REFS) {
+                    evict(hotRefs, MAX_HOT_REFS, c -> c.conflicts.sum(), c -> c.ref.get() == null);
+                }
+                counter = hotRefs.computeIfAbsent(ref.getId(), id -> new HotRefCounter(ref));
+            }
+            counter.conflicts.increment();
+        }
+    }
+
+    /**
+     * 事务调用retry()阻塞等待
+     * @param block
+     */
+    void onRetryWait(Object block) {
+        if (!enabled) {
+            return;
+        }
+        retryWaits.increment();
+        callSite(block).retryWaits.increment();
+    }
+
+    private CallSiteCounter callSite(Object block) {
+        Class<?> type = block.getClass();
+        CallSiteCounter counter = callSites.get(type);
+        if (counter == null) {
+            if (callSites.size() >= MAX_CALL_SITES) {
+                evict(callSites, MAX_CALL_SITES, c -> c.commits.sum() + c.aborts.sum() + c.retryWaits.sum(), c -> false);
+            }
+            counter = callSites.computeIfAbsent(type, CallSiteCounter::new);
+        }
+        return counter;
+    }
+
+    /**
+     * 表满时腾出空间，同一时刻只有一个线程淘汰，其他线程直接插入，表最多短暂超出一点
+     * @param map
+     * @param max
+     * @param count 计数，淘汰最少的
+     * @param stale 可以直接丢弃的，例如已经被回收的引用
+     */
+    private <K, V> void evict(ConcurrentHashMap<K, V> map, int max, ToLongFunction<V> count, Predicate<V> stale) {
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            map.values().removeIf(stale);
+            int target = max - max / 4;
+            if (map.size() < target) {
+                return;
+            }
+            List<Map.Entry<K, Long>> entries = new ArrayList<>(map.size());
+            for (Map.Entry<K, V> e : map.entrySet()) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(e.getKey(), count.applyAsLong(e.getValue())));
+            }
+            entries.sort(Map.Entry.comparingByValue());
+            for (int i = 0, n = entries.size() - target; i < n; i++) {
+                map.remove(entries.get(i).getKey());
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    public StmStatisticsSnapshot snapshot() {
+        return snapshot(DEFAULT_TOP_REFS);
+    }
+
+    /**
+     * 获取统计的快照，统计在获取快照期间仍在更新，各个数值之间不保证严格一致
+     * @param topRefs 保留冲突最多的热点数据的数量
+     * @return
+     */
+    public StmStatisticsSnapshot snapshot(int topRefs) {
+        List<CallSiteStatistics> callSiteList = new ArrayList<>(callSites.size());
+        for (CallSiteCounter counter : callSites.values()) {
+            callSiteList.add(new CallSiteStatistics(counter.name,
+                    counter.commits.sum(), counter.aborts.sum(), counter.retryWaits.sum()));
+        }
+        callSiteList.sort(Comparator.comparingLong(CallSiteStatistics::getAborts).reversed());
+
+        List<HotRefStatistics> hotRefList = new ArrayList<>(hotRefs.size());
+        for (HotRefCounter counter : hotRefs.values()) {
+            hotRefList.add(new HotRefStatistics(counter.name, counter.conflicts.sum(), counter.ref.get()));
+        }
+        hotRefList.sort(Comparator.comparingLong(HotRefStatistics::getConflicts).reversed());
+        if (hotRefList.size() > topRefs) {
+            hotRefList = new ArrayList<>(hotRefList.subList(0, topRefs));
+        }
+
+        return new StmStatisticsSnapshot(commits.sum(), readOnlyCommits.sum(), aborts.sum(), nestedAborts.sum(),
+                retryWaits.sum(), irrevocableCommits.sum(), attempts.snapshot(), readSetSizes.snapshot(),
+                writeSetSizes.snapshot(), commitLatency.snapshot(), Collections.unmodifiableList(callSiteList),
+                Collections.unmodifiableList(hotRefList));
+    }
+
+    /**
+     * 注册到平台MBeanServer，名称见{@link #OBJECT_NAME}，已经注册过时忽略
+     */
+    public void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        } catch (JMException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 关闭后除了一次volatile读之外没有额外开销
+     * @param enabled
+     */
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Override
+    public long getCommits() {
+        return commits.sum();
+    }
+
+    @Override
+    public long getReadOnlyCommits() {
+        return readOnlyCommits.sum();
+    }
+
+    @Override
+    public long getAborts() {
+        return aborts.sum();
+    }
+
+    @Override
+    public long getNestedAborts() {
+        return nestedAborts.sum();
+    }
+
+    @Override
+    public long getRetryWaits() {
+        return retryWaits.sum();
+    }
+
+    @Override
+    public long getIrrevocableCommits() {
+        return irrevocableCommits.sum();
+    }
+
+    @Override
+    public double getAbortRatio() {
+        long abortCount = aborts.sum();
+        long attemptCount = commits.sum() + readOnlyCommits.sum() + abortCount;
+        return attemptCount == 0L ? 0.0 : (double) abortCount / attemptCount;
+    }
+
+    @Override
+    public long getCommitLatencyP50Nanos() {
+        return LogHistogram.percentile(commitLatency.snapshot(), 50.0);
+    }
+
+    @Override
+    public long getCommitLatencyP99Nanos() {
+        return LogHistogram.percentile(commitLatency.snapshot(), 99.0);
+    }
+
+    @Override
+    public long[] getCommitLatencyHistogram() {
+        return commitLatency.snapshot();
+    }
+
+    @Override
+    public long[] getAttemptsHistogram() {
+        return attempts.snapshot();
+    }
+
+    @Override
+    public String[] getHotRefs() {
+        List<HotRefStatistics> list = snapshot().getHotRefs();
+        String[] result = new String[list.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = list.get(i).getName() + " " + list.get(i).getConflicts();
+        }
+        return result;
+    }
+
+    @Override
+    public String[] getCallSites() {
+        List<CallSiteStatistics> list = snapshot().getCallSites();
+        String[] result = new String[list.size()];
+        for (int i = 0; i < result.length; i++) {
+            CallSiteStatistics callSite = list.get(i);
+            result[i] = callSite.getName() + " " + callSite.getCommits() + " " + callSite.getAborts()
+                    + " " + callSite.getRetryWaits();
+        }
+        return result;
+    }
+
+    /**
+     * 清空所有统计
+     */
+    @Override
+    public void reset() {
+        commits.reset();
+        readOnlyCommits.reset();
+        aborts.reset();
+        nestedAborts.reset();
+        retryWaits.reset();
+        irrevocableCommits.reset();
+        attempts.reset();
+        readSetSizes.reset();
+        writeSetSizes.reset();
+        commitLatency.reset();
+        callSites.clear();
+        hotRefs.clear();
+    }
+
+    private static final class CallSiteCounter {
+
+        final String name;
+
+        final LongAdder commits = new LongAdder();
+
+        final LongAdder aborts = new LongAdder();
+
+        final LongAdder retryWaits = new LongAdder();
+
+        CallSiteCounter(Class<?> type) {
+            // lambda类名中'/'之后的后缀每次运行都不同，但是同一个类中的多个lambda只能靠它区分，不能去掉
+            this.name = type.getName();
+        }
+
+    }
+
+    private static final class HotRefCounter {
+
+        final String name;
+
+        /**
+         * 不阻止引用被回收
+         */
+        final WeakReference<AbstractTxnRef> ref;
+
+        final LongAdder conflicts = new LongAdder();
+
+        HotRefCounter(AbstractTxnRef ref) {
+            this.name = ref.toString();
+            this.ref = new WeakReference<>(ref);
+        }
+
+    }
+
+}
@@ -0,0 +1,48 @@
+package com.concurrent.tools.mystm;
+
+/**
+ * 通过JMX查看STM统计，见{@link StmStatistics#registerMBean()}
+ */
+public interface StmStatisticsMXBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    long getCommits();
+
+    long getReadOnlyCommits();
+
+    long getAborts();
+
+    long getNestedAborts();
+
+    long getRetryWaits();
+
+    long getIrrevocableCommits();
+
+    double getAbortRatio();
+
+    long getCommitLatencyP50Nanos();
+
+    long getCommitLatencyP99Nanos();
+
+    long[] getCommitLatencyHistogram();
+
+    long[] getAttemptsHistogram();
+
+    /**
+     * 冲突最多的数据，格式为"名称 冲突次数"
+     * @return
+     */
+    String[] getHotRefs();
+
+    /**
+     * 中止最多的调用点，格式为"名称 提交次数 中止次数 retry次数"
+     * @return
+     */
+    String[] getCallSites();
+
+    void reset();
+
+}
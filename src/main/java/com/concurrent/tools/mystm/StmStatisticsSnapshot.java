@@ -0,0 +1,114 @@
+package com.concurrent.tools.mystm;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.List;
+
+/**
+ * STM统计的快照，见{@link StmStatistics#snapshot()}
+ *      直方图以2的幂划分区间，第0个区间是0，第i个区间是[2^(i-1), 2^i)
+ *      快照不可修改，直方图的getter返回副本，列表不支持修改
+ */
+@Getter
+@ToString
+@EqualsAndHashCode
+@AllArgsConstructor(access = AccessLevel.PACKAGE)
+public class StmStatisticsSnapshot {
+
+    /**
+     * 提交的读写事务数
+     */
+    private final long commits;
+
+    /**
+     * 提交的只读事务数
+     */
+    private final long readOnlyCommits;
+
+    /**
+     * 因为冲突而中止的次数，包含闭合嵌套的内层中止
+     */
+    private final long aborts;
+
+    /**
+     * 闭合嵌套中只重新执行内层事务块的次数
+     */
+    private final long nestedAborts;
+
+    /**
+     * 调用retry()阻塞等待的次数
+     */
+    private final long retryWaits;
+
+    /**
+     * 以不可撤销模式提交的事务数
+     */
+    private final long irrevocableCommits;
+
+    /**
+     * 每个事务执行的次数(中止次数+1)
+     */
+    @Getter(AccessLevel.NONE)
+    private final long[] attempts;
+
+    @Getter(AccessLevel.NONE)
+    private final long[] readSetSizes;
+
+    @Getter(AccessLevel.NONE)
+    private final long[] writeSetSizes;
+
+    /**
+     * 从事务开始到提交完成的耗时，单位纳秒，包含所有重试
+     */
+    @Getter(AccessLevel.NONE)
+    private final long[] commitLatencyNanos;
+
+    /**
+     * 按中止次数从多到少排序
+     */
+    private final List<CallSiteStatistics> callSites;
+
+    /**
+     * 按冲突次数从多到少排序
+     */
+    private final List<HotRefStatistics> hotRefs;
+
+    public long[] getAttempts() {
+        return attempts.clone();
+    }
+
+    public long[] getReadSetSizes() {
+        return readSetSizes.clone();
+    }
+
+    public long[] getWriteSetSizes() {
+        return writeSetSizes.clone();
+    }
+
+    public long[] getCommitLatencyNanos() {
+        return commitLatencyNanos.clone();
+    }
+
+    /**
+     * 中止次数与执行次数的比例
+     * @return
+     */
+    public double getAbortRatio() {
+        long attemptCount = commits + readOnlyCommits + aborts;
+        return attemptCount == 0L ? 0.0 : (double) aborts / attemptCount;
+    }
+
+    /**
+     * 估算提交耗时的百分位数，返回所在区间的上界
+     * @param percentile 0到100
+     * @return
+     */
+    public long getCommitLatencyPercentileNanos(double percentile) {
+        return LogHistogram.percentile(commitLatencyNanos, percentile);
+    }
+
+}
@@ -1,11 +1,22 @@
 package com.concurrent.tools.mystm;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
 
 /**
  * STM事务实现类
+ *      使用全局版本时钟(TL2)：事务开始时记录时钟作为读版本，每次读取数据时都校验数据的版本不大于读版本，
+ *      保证事务看到的始终是一致的快照(opacity)，注定失败的事务在读取时立即中止，不会继续做无用功。
+ *      因为每次读取都已经校验过，只读事务提交时既不需要加锁也不需要校验。
+ *
+ *      事务对象由{@link MyStmUtils}按线程复用，读集和写集是复用的有序数组，稳定运行时不分配内存，
+ *      基本类型的数据以long的形式保存在读写集中，不需要装箱。
+ *      同一次{@link MyStmUtils#atomic(TxnRunnable)}调用的多次重试复用同一个事务对象，
+ *      这样可以累计中止次数、已完成的工作量(karma)等信息，供{@link ContentionManager}决策。
  */
 public final class StmTxn implements Txn {
 
@@ -15,22 +26,165 @@ public final class StmTxn implements Txn {
     private static AtomicLong txnSeq = new AtomicLong(0);
 
     /**
-     * 当前事务所有的相关数据
+     * 全局版本时钟，每个写事务提交时加1
      */
-    private Map<TxnRef, VersionedRef> inTxnMap = new HashMap<>();
+    private static final AtomicLong GLOBAL_VERSION_CLOCK = new AtomicLong(0);
+
+    /**
+     * 不可撤销事务令牌，同一时刻最多只有一个不可撤销事务
+     */
+    private static final ReentrantLock IRREVOCABLE_LOCK = new ReentrantLock();
+
+    /**
+     * 快照读事务遇到正在提交的数据时最多自旋的次数
+     */
+    private static final int SNAPSHOT_SPINS = 64;
+
+    /**
+     * 自旋之后最多让出CPU的次数
+     */
+    private static final int SNAPSHOT_YIELDS = 16;
+
+    /**
+     * 当前事务读取过的数据，只读事务不需要记录读集
+     *      不可撤销事务中，读集里的数据都已经被当前事务锁定
+     */
+    private final RefSet readSet = new RefSet();
 
     /**
      * 当前事务所有需要修改的数据
      */
-    private Map<TxnRef, Object> writeMap = new HashMap<>();
+    private final RefSet writeSet = new RefSet();
 
     /**
-     * 当前事务ID
+     * 当前事务ID，第一次中止时才分配，之后的重试中保持不变，ID越小说明事务越早发生冲突。
+     *      没有冲突的事务不需要竞争全局的ID生成器
      */
     private long txnId;
 
-    public StmTxn() {
-        txnId = txnSeq.incrementAndGet();
+    /**
+     * 读版本，本次尝试开始时的全局时钟
+     */
+    private long readVersion;
+
+    /**
+     * 是否是声明的只读事务
+     */
+    private boolean readOnly;
+
+    /**
+     * 是否是不可撤销事务
+     */
+    private boolean irrevocable;
+
+    /**
+     * 是否是业务要求的不可撤销事务，见{@link #becomeIrrevocable()}。
+     * 与重试预算用完后的升级不同，业务逻辑可能已经执行了I/O，不允许再重新执行
+     */
+    private boolean irrevocableRequested;
+
+    /**
+     * 是否正在执行
+     */
+    private boolean active;
+
+    /**
+     * 第一次尝试开始的时间
+     */
+    private long startNanos;
+
+    /**
+     * 中止次数
+     */
+    private int abortCount;
+
+    /**
+     * 所有尝试中累计读写的数据个数，代表事务已经投入的工作量
+     */
+    private long karma;
+
+    /**
+     * 最近一次读取的结果
+     */
+    private Object loadedValue;
+
+    private long loadedBits;
+
+    /**
+     * 读写集的撤销日志，只在嵌套的事务块中记录
+     */
+    private final UndoLog undoLog = new UndoLog();
+
+    /**
+     * 嵌套的事务块层数
+     */
+    private int nestingDepth;
+
+    /**
+     * retry()等待时，每个读过的数据已经看到的版本
+     */
+    private long[] waitVersions = new long[8];
+
+    /**
+     * 快照读事务在{@link SnapshotRegistry}中的槽位，不是快照读事务时为NO_SLOT
+     */
+    private int snapshotSlot = SnapshotRegistry.NO_SLOT;
+
+    /**
+     * 最近一次中止时导致冲突的数据
+     */
+    private AbstractTxnRef conflictRef;
+
+    /**
+     * 是否属于异步事务，异步事务不能阻塞线程等待不可撤销令牌
+     */
+    private final boolean async;
+
+    StmTxn() {
+        this(false);
+    }
+
+    StmTxn(boolean async) {
+        this.async = async;
+    }
+
+    /**
+     * 开始新的事务
+     * @param readOnly
+     */
+    void begin(boolean readOnly) {
+        this.txnId = 0L;
+        this.readOnly = readOnly;
+        this.irrevocable = false;
+        this.irrevocableRequested = false;
+        this.active = true;
+        this.startNanos = System.nanoTime();
+        this.abortCount = 0;
+        this.karma = 0L;
+        this.nestingDepth = 0;
+        // 只读事务作为快照读事务登记，必须在读取全局版本时钟之前
+        if (readOnly) {
+            this.snapshotSlot = SnapshotRegistry.register();
+        }
+        this.readVersion = GLOBAL_VERSION_CLOCK.get();
+        if (snapshotSlot != SnapshotRegistry.NO_SLOT) {
+            SnapshotRegistry.publish(snapshotSlot, readVersion);
+        }
+    }
+
+    /**
+     * 事务结束，清空读写集以便复用
+     */
+    void end() {
+        readSet.clear();
+        writeSet.clear();
+        undoLog.clear();
+        conflictRef = null;
+        if (snapshotSlot != SnapshotRegistry.NO_SLOT) {
+            SnapshotRegistry.unregister(snapshotSlot);
+            snapshotSlot = SnapshotRegistry.NO_SLOT;
+        }
+        active = false;
     }
 
     /**
@@ -41,56 +195,804 @@ public final class StmTxn implements Txn {
      */
     @Override
     public <T> T get(TxnRef<T> ref) {
-        // 将需要读取的数据，加入inTxnMap
-        if (!inTxnMap.containsKey(ref)) {
-            inTxnMap.put(ref, ref.getCurRef());
-        }
-        return (T) inTxnMap.get(ref).getValue();
+        load(ref);
+        // load()读到的数据来自ref本身或者写集中对ref写入的值，类型都是T
+        @SuppressWarnings("unchecked")
+        T value = (T) loadedValue;
+        loadedValue = null;
+        return value;
     }
 
     /**
-     * 在当前事务中修改数据
+     * 在当前事务中修改数据，只写不读的数据不需要加入读集
      * @param ref
      * @param value
      * @param <T>
      */
     @Override
     public <T> void set(TxnRef<T> ref, T value) {
-        // 将需要修改的数据，加入inTxnMap
-        if (!inTxnMap.containsKey(ref)) {
-            inTxnMap.put(ref, ref.getCurRef());
+        store(ref, value, 0L, false);
+    }
+
+    @Override
+    public long get(TxnLong ref) {
+        load(ref);
+        return loadedBits;
+    }
+
+    @Override
+    public void set(TxnLong ref, long value) {
+        store(ref, null, value, false);
+    }
+
+    @Override
+    public int get(TxnInt ref) {
+        load(ref);
+        return (int) loadedBits;
+    }
+
+    @Override
+    public void set(TxnInt ref, int value) {
+        store(ref, null, value, false);
+    }
+
+    @Override
+    public double get(TxnDouble ref) {
+        load(ref);
+        return Double.longBitsToDouble(loadedBits);
+    }
+
+    @Override
+    public void set(TxnDouble ref, double value) {
+        store(ref, null, Double.doubleToRawLongBits(value), false);
+    }
+
+    @Override
+    public <T> void commute(TxnRef<T> ref, UnaryOperator<T> function) {
+        int index = writeSet.indexOf(ref);
+        if (index < 0) {
+            store(ref, function, 0L, true);
+            return;
+        }
+        logWrite(index, ref);
+        if (writeSet.commutes[index]) {
+            // 合并同一个事务中的多个操作
+            writeSet.values[index] = StmTxn.<T>asFunction(writeSet.values[index]).andThen(function);
+        } else {
+            // 已经有确定的新值，直接作用在新值上
+            writeSet.values[index] = asFunction(function).apply(writeSet.values[index]);
+        }
+    }
+
+    @Override
+    public void commute(TxnLong ref, long delta) {
+        commuteBits(ref, delta);
+    }
+
+    @Override
+    public void commute(TxnInt ref, int delta) {
+        commuteBits(ref, delta);
+    }
+
+    @Override
+    public void commute(TxnDouble ref, double delta) {
+        commuteBits(ref, Double.doubleToRawLongBits(delta));
+    }
+
+    /**
+     * 基本类型的可交换操作，同一个事务中的多个增量直接合并
+     * @param ref
+     * @param delta
+     */
+    private void commuteBits(AbstractTxnRef ref, long delta) {
+        int index = writeSet.indexOf(ref);
+        if (index >= 0) {
+            logWrite(index, ref);
+            writeSet.bits[index] = ref.commuteBits(writeSet.bits[index], delta);
+            return;
+        }
+        store(ref, null, delta, true);
+    }
+
+    /**
+     * 读取数据，结果保存在loadedValue和loadedBits中，避免基本类型装箱
+     *      只读事务每次读取都会校验版本不大于读版本，重复读取同一个数据也能得到相同的值，不需要缓存
+     * @param ref
+     */
+    private void load(AbstractTxnRef ref) {
+        if (readOnly && !irrevocable) {
+            read(ref);
+            return;
+        }
+        // 读自己写过的数据
+        int index = writeSet.indexOf(ref);
+        if (index < 0) {
+            loadCommitted(ref);
+            return;
+        }
+        if (writeSet.commutes[index]) {
+            // 读取延迟执行的可交换操作的结果，只能先读取数据，再把操作变成普通的写入
+            loadCommitted(ref);
+            logWrite(index, ref);
+            if (ref instanceof TxnRef) {
+                writeSet.values[index] = asFunction(writeSet.values[index]).apply(loadedValue);
+            } else {
+                writeSet.bits[index] = ref.commuteBits(loadedBits, writeSet.bits[index]);
+            }
+            writeSet.commutes[index] = false;
+        }
+        loadedValue = writeSet.values[index];
+        loadedBits = writeSet.bits[index];
+    }
+
+    /**
+     * 读取已提交的数据，并加入读集
+     * @param ref
+     */
+    private void loadCommitted(AbstractTxnRef ref) {
+        int index = readSet.indexOf(ref);
+        if (index >= 0) {
+            loadedValue = readSet.values[index];
+            loadedBits = readSet.bits[index];
+            return;
+        }
+        if (irrevocable) {
+            // 不可撤销事务第一次访问时就锁定数据并一直持有到提交，其他事务无法修改，所以不需要校验，一定能提交成功。
+            // 写集中的数据(例如可交换操作)已经锁定过了
+            if (!writeSet.contains(ref)) {
+                lockIrrevocable(ref);
+            }
+            loadedValue = ref.read();
+            loadedBits = ref.readBits();
+        } else {
+            read(ref);
+            if (nestingDepth > 0) {
+                undoLog.addRead(ref);
+            }
+        }
+        readSet.insert(-index - 1, ref, loadedValue, loadedBits, false);
+    }
+
+    /**
+     * 在当前事务中修改数据
+     * @param ref
+     * @param value
+     * @param bits
+     * @param commute
+     */
+    private void store(AbstractTxnRef ref, Object value, long bits, boolean commute) {
+        if (readOnly) {
+            throw new IllegalStateException("can not set value in a read-only transaction");
+        }
+        int index = writeSet.indexOf(ref);
+        logWrite(index, ref);
+        if (index >= 0) {
+            writeSet.values[index] = value;
+            writeSet.bits[index] = bits;
+            writeSet.commutes[index] = commute;
+            return;
+        }
+        if (irrevocable && !readSet.contains(ref)) {
+            lockIrrevocable(ref);
+        }
+        writeSet.insert(-index - 1, ref, value, bits, commute);
+    }
+
+    /**
+     * 在嵌套的事务块中，修改写集之前记录旧值
+     * @param index 数据在写集中的位置，小于0表示新加入写集
+     * @param ref
+     */
+    private void logWrite(int index, AbstractTxnRef ref) {
+        if (nestingDepth == 0) {
+            return;
+        }
+        if (index >= 0) {
+            undoLog.add(ref, writeSet.values[index], writeSet.bits[index], writeSet.commutes[index], false);
+        } else {
+            undoLog.add(ref, null, 0L, false, true);
+        }
+    }
+
+    @Override
+    public void retry() {
+        if (readOnly) {
+            throw new IllegalStateException("can not retry in a read-only transaction");
+        }
+        if (irrevocableRequested) {
+            throw new IllegalStateException("can not retry in an irrevocable transaction");
+        }
+        throw TxnRetryException.INSTANCE;
+    }
+
+    /**
+     * 把正在执行的事务升级为不可撤销事务
+     *      1、拿到不可撤销令牌，同一时刻只有一个不可撤销事务；
+     *         异步事务只尝试获取，拿不到时中止，由异步任务延迟后以不可撤销模式重新执行，不阻塞线程
+     *      2、按ID顺序锁定读集和写集中的所有数据，普通事务加锁失败会立即放弃，所以自旋等待不会死锁
+     *      3、校验读集，之前读到的数据没有被修改过，才能保证之后一定提交成功；
+     *         校验失败时释放锁和令牌并中止，事务从头以不可撤销模式重新执行，此时业务逻辑还没有执行过不可重复的操作
+     */
+    @Override
+    public void becomeIrrevocable() {
+        if (readOnly) {
+            throw new IllegalStateException("read-only transaction can not become irrevocable");
+        }
+        irrevocableRequested = true;
+        if (irrevocable) {
+            return;
+        }
+        if (async) {
+            if (!IRREVOCABLE_LOCK.tryLock()) {
+                throw abort(null);
+            }
+        } else {
+            IRREVOCABLE_LOCK.lock();
+        }
+        lockAll();
+        for (int i = 0; i < readSet.size; i++) {
+            if (AbstractTxnRef.versionOf(readSet.refs[i].getLock()) > readVersion) {
+                AbstractTxnRef ref = readSet.refs[i];
+                unlockAll();
+                IRREVOCABLE_LOCK.unlock();
+                throw abort(ref);
+            }
+        }
+        irrevocable = true;
+    }
+
+    /**
+     * 合并读集和写集，按ID顺序锁定
+     */
+    private void lockAll() {
+        int r = 0;
+        int w = 0;
+        while (r < readSet.size || w < writeSet.size) {
+            AbstractTxnRef ref;
+            if (w == writeSet.size || (r < readSet.size && readSet.refs[r].getId() < writeSet.refs[w].getId())) {
+                ref = readSet.refs[r++];
+            } else if (r == readSet.size || writeSet.refs[w].getId() < readSet.refs[r].getId()) {
+                ref = writeSet.refs[w++];
+            } else {
+                ref = readSet.refs[r++];
+                w++;
+            }
+            lockIrrevocable(ref);
+        }
+    }
+
+    private void unlockAll() {
+        for (int i = 0; i < readSet.size; i++) {
+            readSet.refs[i].unlock();
+        }
+        for (int i = 0; i < writeSet.size; i++) {
+            if (!readSet.contains(writeSet.refs[i])) {
+                writeSet.refs[i].unlock();
+            }
+        }
+    }
+
+    @Override
+    public void orElse(TxnRunnable either, TxnRunnable orElse) {
+        int mark = undoLog.size;
+        nestingDepth++;
+        try {
+            either.run(this);
+            return;
+        } catch (TxnRetryException e) {
+            // either放弃，撤销它对写集的修改，它的读集保留，整个事务retry时也要等待这些数据
+            rollback(mark, false);
+        } finally {
+            if (--nestingDepth == 0) {
+                undoLog.clear();
+            }
+        }
+        orElse.run(this);
+    }
+
+    /**
+     * 按相反的顺序撤销写集的修改，直到撤销日志的指定位置
+     * @param mark
+     * @param dropReads 是否同时从读集中删除事务块读过的数据
+     */
+    private void rollback(int mark, boolean dropReads) {
+        for (int i = undoLog.size - 1; i >= mark; i--) {
+            AbstractTxnRef ref = undoLog.refs[i];
+            if (undoLog.reads[i]) {
+                // 不可撤销事务已经锁定了读过的数据，保留在读集中，提交时统一释放
+                if (dropReads && !irrevocable) {
+                    readSet.remove(readSet.indexOf(ref));
+                }
+                continue;
+            }
+            int index = writeSet.indexOf(ref);
+            if (undoLog.inserted[i]) {
+                writeSet.remove(index);
+                // 不可撤销事务为写入而锁定的数据
+                if (irrevocable && !readSet.contains(ref)) {
+                    ref.unlock();
+                }
+            } else {
+                writeSet.values[index] = undoLog.values[i];
+                writeSet.bits[index] = undoLog.bits[i];
+                writeSet.commutes[index] = undoLog.commutes[i];
+            }
+        }
+        undoLog.truncate(mark);
+    }
+
+    /**
+     * 开始闭合嵌套的事务块
+     * @return 撤销日志的位置，事务块中止时回滚到这里
+     */
+    int beginNested() {
+        nestingDepth++;
+        return undoLog.size;
+    }
+
+    void endNested() {
+        if (--nestingDepth == 0) {
+            undoLog.clear();
+        }
+    }
+
+    /**
+     * 闭合嵌套的事务块中止，撤销它的写入，并从读集中删除它读过的数据，外层事务读过的数据保留
+     * @param mark
+     */
+    void rollbackNested(int mark) {
+        rollback(mark, true);
+    }
+
+    /**
+     * 闭合嵌套的事务块中止后计数，不清空读写集
+     */
+    void nestedAbort() {
+        abortCount++;
+        if (txnId == 0L) {
+            txnId = txnSeq.incrementAndGet();
+        }
+    }
+
+    /**
+     * 延长读版本(timestamp extension)
+     *      先读取全局版本时钟，再确认读集中的数据都没有被修改、也没有正在提交，
+     *      那么到新的读版本为止读集仍然是一致的快照，可以只重新执行中止的内层事务块
+     * @return 读集已经失效时返回false，只能重新执行整个事务
+     */
+    boolean extend() {
+        long newReadVersion = GLOBAL_VERSION_CLOCK.get();
+        for (int i = 0; i < readSet.size; i++) {
+            long lock = readSet.refs[i].getLock();
+            if (AbstractTxnRef.isLocked(lock) || AbstractTxnRef.versionOf(lock) > readVersion) {
+                return false;
+            }
+        }
+        readVersion = newReadVersion;
+        return true;
+    }
+
+    /**
+     * retry()之后阻塞，直到读集中任意一个数据发生变化
+     *      先在读过的数据上登记等待，再检查版本，提交的事务先发布版本再唤醒等待的线程，所以不会丢失唤醒。
+     *      不可撤销事务需要先释放所有锁，否则其他事务无法修改这些数据
+     */
+    void awaitChange() {
+        final int size = readSet.size;
+        if (size == 0) {
+            throw new IllegalStateException("retry() without reading any ref would block forever");
+        }
+        if (waitVersions.length < size) {
+            waitVersions = new long[Math.max(size, waitVersions.length << 1)];
+        }
+        final AbstractTxnRef[] refs = readSet.refs;
+        final Thread thread = Thread.currentThread();
+        try {
+            for (int i = 0; i < size; i++) {
+                refs[i].addWaiter(thread);
+                // 不可撤销事务读到的是持有锁时的最新版本，普通事务读到的版本都不大于读版本
+                waitVersions[i] = irrevocable ? AbstractTxnRef.versionOf(refs[i].getLock()) : readVersion;
+            }
+            if (irrevocable) {
+                unlockIrrevocable(0L);
+            }
+            while (!changed(refs, size)) {
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    throw new RetryInterruptedException();
+                }
+            }
+        } finally {
+            for (int i = 0; i < size; i++) {
+                refs[i].removeWaiter(thread);
+            }
+        }
+    }
+
+    /**
+     * 异步事务retry()之后登记等待，不阻塞当前线程
+     *      与{@link #awaitChange()}一样先登记再检查版本，读集发生变化时由提交的线程回调waiter
+     * @param waiter
+     * @return 读集已经发生变化，调用方应该直接触发waiter
+     */
+    boolean awaitChangeAsync(AsyncRetryWaiter waiter) {
+        final int size = readSet.size;
+        if (size == 0) {
+            throw new IllegalStateException("retry() without reading any ref would block forever");
+        }
+        if (waitVersions.length < size) {
+            waitVersions = new long[Math.max(size, waitVersions.length << 1)];
+        }
+        final AbstractTxnRef[] refs = Arrays.copyOf(readSet.refs, size);
+        waiter.refs = refs;
+        for (int i = 0; i < size; i++) {
+            refs[i].addWaiter(waiter);
+            waitVersions[i] = irrevocable ? AbstractTxnRef.versionOf(refs[i].getLock()) : readVersion;
+        }
+        if (irrevocable) {
+            unlockIrrevocable(0L);
+        }
+        return changed(refs, size);
+    }
+
+    private boolean changed(AbstractTxnRef[] refs, int size) {
+        for (int i = 0; i < size; i++) {
+            long lock = refs[i].getLock();
+            // 被锁定说明有事务正在提交，当作已经变化，重新执行一次
+            if (AbstractTxnRef.isLocked(lock) || AbstractTxnRef.versionOf(lock) > waitVersions[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 读取数据并校验版本
+     *      前后两次读取版本锁，保证读到的数据没有被并发修改，且版本不大于读版本，否则立即中止事务。
+     *      快照读事务读到更新的版本时从历史版本中查找，历史已被裁剪时才中止。
+     *      数据被锁定时版本锁中仍然是旧版本，旧版本已经比读版本新时，需要的版本一定已经在历史中；
+     *      否则提交的事务可能正在写入读版本需要的数据，短暂自旋等待，仍然没有完成才中止
+     * @param ref
+     */
+    private void read(AbstractTxnRef ref) {
+        for (int spins = 0; ; spins++) {
+            long pre = ref.getLock();
+            Object value = ref.read();
+            long bits = ref.readBits();
+            long post = ref.getLock();
+            boolean stable = !AbstractTxnRef.isLocked(pre) && pre == post;
+            if (stable && AbstractTxnRef.versionOf(pre) <= readVersion) {
+                loadedValue = value;
+                loadedBits = bits;
+                return;
+            }
+            if (snapshotSlot == SnapshotRegistry.NO_SLOT) {
+                throw abort(ref);
+            }
+            if (stable || AbstractTxnRef.versionOf(pre) > readVersion) {
+                VersionNode node = ref.findHistory(readVersion);
+                if (node == null) {
+                    throw abort(ref);
+                }
+                loadedValue = node.value;
+                loadedBits = node.bits;
+                return;
+            }
+            if (spins < SNAPSHOT_SPINS) {
+                Thread.onSpinWait();
+            } else if (spins < SNAPSHOT_SPINS + SNAPSHOT_YIELDS) {
+                // 持有锁的线程可能没有在运行，让出CPU
+                Thread.yield();
+            } else {
+                throw abort(ref);
+            }
+        }
+    }
+
+    /**
+     * 记录导致冲突的数据，用于统计热点
+     * @param ref
+     * @return
+     */
+    private TxnAbortException abort(AbstractTxnRef ref) {
+        conflictRef = ref;
+        return TxnAbortException.INSTANCE;
+    }
+
+    /**
+     * 提交写集之前保留被覆盖的数据，只能在持有写集的锁、并且已经递增全局版本时钟之后调用
+     */
+    private void saveHistory() {
+        final AbstractTxnRef[] writeRefs = writeSet.refs;
+        final int writeSize = writeSet.size;
+        long minReadVersion = SnapshotRegistry.minReadVersion();
+        if (minReadVersion != SnapshotRegistry.NO_READERS) {
+            int maxHistory = SnapshotRegistry.getMaxHistory();
+            for (int i = 0; i < writeSize; i++) {
+                writeRefs[i].pushHistory(minReadVersion, maxHistory);
+            }
+        } else {
+            for (int i = 0; i < writeSize; i++) {
+                writeRefs[i].clearHistory();
+            }
+        }
+    }
+
+    /**
+     * 不可撤销事务锁定数据
+     *      普通事务只在提交时短暂持有锁，并且加锁失败会立即放弃，所以这里自旋等待不会死锁
+     * @param ref
+     */
+    private void lockIrrevocable(AbstractTxnRef ref) {
+        while (!ref.tryLock()) {
+            Thread.onSpinWait();
         }
-        writeMap.put(ref, value);
     }
 
     /**
      * 提交事务
+     *      0、没有写数据的事务直接提交成功
+     *      1、写集已经按引用的ID排好序，按顺序锁定写集，顺序加锁避免死锁，加锁失败立即放弃，不会阻塞
+     *      2、全局时钟加1，得到写版本
+     *      3、校验读集，版本号大于读版本或者被其他事务锁定，则提交失败。
+     *         如果写版本恰好是读版本+1，说明期间没有其他事务提交，可以跳过校验。
+     *         可交换操作没有读取数据，不在读集中，不会因为其他事务修改了该数据而失败
+     *      4、把可交换操作作用在最新的数据上，有快照读事务时保留旧数据，写入新值，释放锁的同时发布写版本
+     *      写集不相交的事务之间没有任何共享的锁，可以并行提交
      * @return
      */
     public boolean commit() {
-        synchronized (MyStmUtils.COMMIT_LOCK) {
-            // 是否验证通过
-            boolean isValid = true;
+        if (irrevocable) {
+            commitIrrevocable();
+            return true;
+        }
+        // 只读事务读到的一定是读版本时刻的一致快照，直接提交
+        if (readOnly || writeSet.isEmpty()) {
+            return true;
+        }
+
+        final AbstractTxnRef[] writeRefs = writeSet.refs;
+        final int writeSize = writeSet.size;
+        // 已经成功锁定的数量
+        int locked = 0;
+        try {
+            for (int i = 0; i < writeSize; i++) {
+                if (!writeRefs[i].tryLock()) {
+                    conflictRef = writeRefs[i];
+                    return false;
+                }
+                locked++;
+            }
+
+            long writeVersion = GLOBAL_VERSION_CLOCK.incrementAndGet();
 
             // 校验所有读过的数据是否发生过变化
-            for (Map.Entry<TxnRef, VersionedRef> entry : inTxnMap.entrySet()) {
-                VersionedRef curRef = entry.getKey().getCurRef();
-                VersionedRef readRef = entry.getValue();
-                // 通过版本号来验证数据是否发生过变化
-                if (curRef.getVersion() != readRef.getVersion()) {
-                    isValid = false;
-                    break;
+            if (writeVersion != readVersion + 1) {
+                for (int i = 0; i < readSet.size; i++) {
+                    AbstractTxnRef ref = readSet.refs[i];
+                    long lock = ref.getLock();
+                    // 被其他事务锁定，说明其他事务正在提交
+                    if (AbstractTxnRef.isLocked(lock) && !writeSet.contains(ref)) {
+                        conflictRef = ref;
+                        return false;
+                    }
+                    // 通过版本号来验证数据是否发生过变化
+                    if (AbstractTxnRef.versionOf(lock) > readVersion) {
+                        conflictRef = ref;
+                        return false;
+                    }
                 }
             }
 
-            // 如果校验通过，则所有更改生效
-            if (isValid) {
-                writeMap.forEach((k, v) -> {
-                    k.setCurRef(new VersionedRef(v, txnId));
-                });
+            // 校验通过，先计算可交换操作的结果，操作抛出异常时可以安全地放弃提交
+            applyCommutes();
+            saveHistory();
+
+            // 所有更改生效
+            for (int i = 0; i < writeSize; i++) {
+                writeRefs[i].write(writeSet.values[i], writeSet.bits[i]);
+                writeRefs[i].unlock(writeVersion);
+            }
+            locked = 0;
+            // 唤醒在retry()中等待这些数据的线程
+            for (int i = 0; i < writeSize; i++) {
+                writeRefs[i].signalWaiters();
+            }
+            return true;
+        } finally {
+            // 提交失败，释放已经获取的锁
+            for (int i = 0; i < locked; i++) {
+                writeRefs[i].unlock();
+            }
+        }
+    }
+
+    /**
+     * 把写集中延迟执行的可交换操作作用在最新的已提交数据上，只能在持有写集的锁时调用
+     */
+    private void applyCommutes() {
+        for (int i = 0; i < writeSet.size; i++) {
+            if (!writeSet.commutes[i]) {
+                continue;
+            }
+            AbstractTxnRef ref = writeSet.refs[i];
+            if (ref instanceof TxnRef) {
+                writeSet.values[i] = asFunction(writeSet.values[i]).apply(ref.read());
+            } else {
+                writeSet.bits[i] = ref.commuteBits(ref.readBits(), writeSet.bits[i]);
+            }
+            writeSet.commutes[i] = false;
+        }
+    }
+
+    /**
+     * 写集中按Object保存的可交换操作，类型在commute()时已经由TxnRef<T>保证
+     * @param function
+     * @param <T>
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> Function<T, T> asFunction(Object function) {
+        return (Function<T, T>) function;
+    }
+
+    /**
+     * 提交不可撤销事务，所有数据都已锁定，直接写入
+     */
+    private void commitIrrevocable() {
+        if (!writeSet.isEmpty()) {
+            applyCommutes();
+            long writeVersion = GLOBAL_VERSION_CLOCK.incrementAndGet();
+            saveHistory();
+            for (int i = 0; i < writeSet.size; i++) {
+                writeSet.refs[i].write(writeSet.values[i], writeSet.bits[i]);
+            }
+            unlockIrrevocable(writeVersion);
+        } else {
+            unlockIrrevocable(0L);
+        }
+    }
+
+    /**
+     * 释放不可撤销事务持有的锁和令牌，业务逻辑抛出异常时也需要调用
+     */
+    void release() {
+        if (irrevocable) {
+            unlockIrrevocable(0L);
+        }
+    }
+
+    /**
+     * 释放不可撤销事务锁定的所有数据
+     *      释放令牌之后才唤醒等待者：异步事务的回调会调用executor.execute()，可能阻塞，
+     *      同线程执行的executor还会在这里执行另一个事务，不能让它们在持有令牌时发生
+     * @param writeVersion 写集发布的新版本，为0表示没有写入，写集恢复原来的版本
+     */
+    private void unlockIrrevocable(long writeVersion) {
+        for (int i = 0; i < readSet.size; i++) {
+            AbstractTxnRef ref = readSet.refs[i];
+            if (!writeSet.contains(ref)) {
+                ref.unlock();
+            }
+        }
+        for (int i = 0; i < writeSet.size; i++) {
+            if (writeVersion == 0L) {
+                writeSet.refs[i].unlock();
+            } else {
+                writeSet.refs[i].unlock(writeVersion);
             }
-            return isValid;
         }
+        irrevocable = false;
+        IRREVOCABLE_LOCK.unlock();
+        if (writeVersion != 0L) {
+            for (int i = 0; i < writeSet.size; i++) {
+                writeSet.refs[i].signalWaiters();
+            }
+        }
+    }
+
+    /**
+     * 重新开始，使用新的读版本
+     * @param aborted 是否是因为冲突而中止，retry()之后的重新执行不算中止
+     */
+    void restart(boolean aborted) {
+        if (aborted) {
+            abortCount++;
+            if (txnId == 0L) {
+                txnId = txnSeq.incrementAndGet();
+            }
+        }
+        karma += readSet.size + writeSet.size;
+        readSet.clear();
+        writeSet.clear();
+        undoLog.clear();
+        conflictRef = null;
+        nestingDepth = 0;
+        readVersion = GLOBAL_VERSION_CLOCK.get();
+        if (snapshotSlot != SnapshotRegistry.NO_SLOT) {
+            SnapshotRegistry.publish(snapshotSlot, readVersion);
+        }
+    }
+
+    /**
+     * 以不可撤销模式开始，会一直等待到拿到不可撤销令牌，只能在begin()之后、执行业务逻辑之前调用
+     */
+    void beginIrrevocable() {
+        IRREVOCABLE_LOCK.lock();
+        irrevocable = true;
+        irrevocableRequested = true;
+    }
+
+    /**
+     * 以不可撤销模式重新开始，拿不到不可撤销令牌时立即返回，用于不能阻塞的异步事务
+     * @return 是否拿到了令牌
+     */
+    boolean tryRestartIrrevocable() {
+        if (!IRREVOCABLE_LOCK.tryLock()) {
+            return false;
+        }
+        restart(false);
+        irrevocable = true;
+        return true;
+    }
+
+    /**
+     * 以不可撤销模式重新开始，会一直等待到拿到不可撤销令牌
+     * @param aborted
+     */
+    void restartIrrevocable(boolean aborted) {
+        restart(aborted);
+        IRREVOCABLE_LOCK.lock();
+        irrevocable = true;
+    }
+
+    public long getTxnId() {
+        return txnId;
+    }
+
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    public int getAbortCount() {
+        return abortCount;
+    }
+
+    public long getKarma() {
+        return karma;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    @Override
+    public boolean isIrrevocable() {
+        return irrevocable;
+    }
+
+    /**
+     * 读集的大小，只读事务不记录读集，始终为0
+     * @return
+     */
+    public int getReadSetSize() {
+        return readSet.size;
+    }
+
+    public int getWriteSetSize() {
+        return writeSet.size;
+    }
+
+    boolean isActive() {
+        return active;
+    }
+
+    boolean isIrrevocableRequested() {
+        return irrevocableRequested;
+    }
+
+    AbstractTxnRef getConflictRef() {
+        return conflictRef;
     }
 
 }
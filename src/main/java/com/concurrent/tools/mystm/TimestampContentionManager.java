@@ -0,0 +1,102 @@
+package com.concurrent.tools.mystm;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 基于时间戳的优先级
+ *      事务ID在第一次中止时分配，之后的重试中保持不变，ID越小说明事务越早陷入冲突。
+ *      中止次数达到阈值的事务会把自己登记为饥饿事务，只保留最早开始的那一个，
+ *      其他更晚开始的事务中止后需要等待饥饿事务结束(最多等待一段时间)，让最老的事务优先完成。
+ */
+public class TimestampContentionManager extends BackoffContentionManager {
+
+    /**
+     * 没有饥饿事务
+     */
+    private static final long NONE = Long.MAX_VALUE;
+
+    /**
+     * 等待饥饿事务时每次挂起的时间
+     */
+    private static final long WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    /**
+     * 当前最早开始的饥饿事务的ID
+     */
+    private final AtomicLong starvingTxnId = new AtomicLong(NONE);
+
+    /**
+     * 中止多少次被认为是饥饿
+     */
+    private final int starvationThreshold;
+
+    /**
+     * 等待饥饿事务的最长时间
+     */
+    private final long maxWaitNanos;
+
+    public TimestampContentionManager() {
+        this(8, TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    public TimestampContentionManager(int starvationThreshold, long maxWaitNanos) {
+        this.starvationThreshold = starvationThreshold;
+        this.maxWaitNanos = maxWaitNanos;
+    }
+
+    @Override
+    public void onAbort(StmTxn txn) {
+        long txnId = txn.getTxnId();
+        long starving = registerStarving(txn);
+        if (starving == NONE || starving >= txnId) {
+            super.onAbort(txn);
+            return;
+        }
+
+        // 更晚开始的事务让路，直到饥饿事务结束或者等待超时
+        long deadline = System.nanoTime() + maxWaitNanos;
+        while (starvingTxnId.get() == starving && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(WAIT_NANOS);
+        }
+    }
+
+    /**
+     * 异步事务不能阻塞等待，更晚开始的事务延迟最长等待时间之后再重试
+     * @param txn
+     * @return
+     */
+    @Override
+    public long backoffNanos(StmTxn txn) {
+        long starving = registerStarving(txn);
+        if (starving == NONE || starving >= txn.getTxnId()) {
+            return super.backoffNanos(txn);
+        }
+        return maxWaitNanos;
+    }
+
+    /**
+     * 中止次数达到阈值时登记为饥饿事务，只保留ID最小的
+     * @param txn
+     * @return 当前的饥饿事务
+     */
+    private long registerStarving(StmTxn txn) {
+        long txnId = txn.getTxnId();
+        if (txn.getAbortCount() >= starvationThreshold) {
+            long cur;
+            while (txnId < (cur = starvingTxnId.get())) {
+                if (starvingTxnId.compareAndSet(cur, txnId)) {
+                    break;
+                }
+            }
+        }
+        return starvingTxnId.get();
+    }
+
+    @Override
+    public void onComplete(StmTxn txn) {
+        starvingTxnId.compareAndSet(txn.getTxnId(), NONE);
+    }
+
+}
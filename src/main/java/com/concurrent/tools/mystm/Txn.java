@@ -1,5 +1,7 @@
 package com.concurrent.tools.mystm;
 
+import java.util.function.UnaryOperator;
+
 /**
  * 事务接口
  */
@@ -9,4 +11,53 @@ public interface Txn {
 
     <T> void set(TxnRef<T> ref, T value);
 
+    long get(TxnLong ref);
+
+    void set(TxnLong ref, long value);
+
+    int get(TxnInt ref);
+
+    void set(TxnInt ref, int value);
+
+    double get(TxnDouble ref);
+
+    void set(TxnDouble ref, double value);
+
+    /**
+     * 可交换操作，延迟到提交时执行，不加入读集。在同一个事务中之后读取该数据时，会先读取数据再执行操作
+     * @param ref
+     * @param function
+     * @param <T>
+     */
+    <T> void commute(TxnRef<T> ref, UnaryOperator<T> function);
+
+    void commute(TxnLong ref, long delta);
+
+    void commute(TxnInt ref, int delta);
+
+    void commute(TxnDouble ref, double delta);
+
+    /**
+     * 放弃当前事务，阻塞到当前事务读过的任意一个数据发生变化后再重新执行，用于等待条件满足，例如余额足够
+     */
+    void retry();
+
+    /**
+     * 组合两个事务块：先执行either，如果either调用了{@link #retry()}，撤销either的修改，再执行orElse。
+     * 如果orElse也调用了retry()，整个事务阻塞到两者读过的任意一个数据发生变化
+     * @param either
+     * @param orElse
+     */
+    void orElse(TxnRunnable either, TxnRunnable orElse);
+
+    /**
+     * 把当前事务升级为不可撤销事务，之后的代码只会执行一次，可以执行I/O等不能重复执行的操作。
+     * 同一时刻最多只有一个不可撤销事务，它访问的数据会被锁定到提交，不冲突的事务仍然可以并发提交。
+     * 升级时如果之前读到的数据已经失效，当前事务会从头以不可撤销模式重新执行，所以应该在执行I/O之前调用。
+     * 不可撤销事务中不能调用{@link #retry()}
+     */
+    void becomeIrrevocable();
+
+    boolean isIrrevocable();
+
 }
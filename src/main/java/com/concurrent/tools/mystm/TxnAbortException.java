@@ -0,0 +1,15 @@
+package com.concurrent.tools.mystm;
+
+/**
+ * 事务冲突时抛出，用于立即中止当前事务，由{@link MyStmUtils#atomic(TxnRunnable)}捕获并重试
+ *      中止是正常的控制流，不需要异常栈，使用单例避免每次中止都创建对象
+ */
+final class TxnAbortException extends RuntimeException {
+
+    static final TxnAbortException INSTANCE = new TxnAbortException();
+
+    private TxnAbortException() {
+        super("transaction aborted", null, false, false);
+    }
+
+}
@@ -0,0 +1,77 @@
+package com.concurrent.tools.mystm;
+
+/**
+ * 支持事务的定长数组
+ *      每个元素是一个独立的TxnRef，修改不同下标的事务不会互相冲突
+ * @param <E>
+ */
+public class TxnArray<E> {
+
+    private final TxnRef<E>[] elements;
+
+    public TxnArray(int length) {
+        this(length, null);
+    }
+
+    /**
+     * @param length
+     * @param initial 所有元素的初始值
+     */
+    public TxnArray(int length, E initial) {
+        if (length < 0) {
+            throw new IllegalArgumentException("length: " + length);
+        }
+        this.elements = TxnRef.newArray(length);
+        for (int i = 0; i < length; i++) {
+            elements[i] = new TxnRef<>(initial);
+        }
+    }
+
+    public int length() {
+        return elements.length;
+    }
+
+    /**
+     * 获取当前事务中下标为index的元素
+     * @param index
+     * @param txn
+     * @return
+     */
+    public E get(int index, Txn txn) {
+        return txn.get(elements[index]);
+    }
+
+    /**
+     * 在当前事务中设置下标为index的元素
+     * @param index
+     * @param value
+     * @param txn
+     */
+    public void set(int index, E value, Txn txn) {
+        txn.set(elements[index], value);
+    }
+
+    /**
+     * 在当前事务中设置下标为index的元素，并返回原来的元素
+     * @param index
+     * @param value
+     * @param txn
+     * @return
+     */
+    public E getAndSet(int index, E value, Txn txn) {
+        TxnRef<E> ref = elements[index];
+        E old = txn.get(ref);
+        txn.set(ref, value);
+        return old;
+    }
+
+    /**
+     * 下标为index的元素对应的TxnRef，可以用于可交换操作等
+     * @param index
+     * @return
+     */
+    public TxnRef<E> refAt(int index) {
+        return elements[index];
+    }
+
+}
@@ -0,0 +1,12 @@
+package com.concurrent.tools.mystm;
+
+/**
+ * 带返回值的事务逻辑
+ * @param <T>
+ */
+@FunctionalInterface
+public interface TxnCallable<T> {
+
+    T call(Txn txn);
+
+}
@@ -0,0 +1,77 @@
+package com.concurrent.tools.mystm;
+
+/**
+ * 支持事务的int，数据直接保存在int字段中，读写都不需要装箱
+ */
+public class TxnInt extends AbstractTxnRef {
+
+    private volatile int value;
+
+    public TxnInt(int value) {
+        this.value = value;
+    }
+
+    /**
+     * 获取当前事务中的数据
+     * @param txn
+     * @return
+     */
+    public int getValue(Txn txn) {
+        return txn.get(this);
+    }
+
+    /**
+     * 在当前事务中设置数据
+     * @param value
+     * @param txn
+     */
+    public void setValue(int value, Txn txn) {
+        txn.set(this, value);
+    }
+
+    /**
+     * 在当前事务中增加delta，可交换操作，延迟到提交时才执行，不读取数据也不加入读集，
+     *      多个事务同时增加同一个数据不会互相冲突
+     * @param delta
+     * @param txn
+     */
+    public void increment(int delta, Txn txn) {
+        txn.commute(this, delta);
+    }
+
+    /**
+     * 在当前事务中增加delta，并返回增加后的值，需要读取数据，会加入读集
+     * @param delta
+     * @param txn
+     * @return
+     */
+    public int incrementAndGet(int delta, Txn txn) {
+        int newValue = txn.get(this) + delta;
+        txn.set(this, newValue);
+        return newValue;
+    }
+
+    /**
+     * 不在事务中读取已提交的数据
+     * @return
+     */
+    public int atomicGet() {
+        return (int) atomicGetBits();
+    }
+
+    @Override
+    long readBits() {
+        return value;
+    }
+
+    @Override
+    void write(Object value, long bits) {
+        this.value = (int) bits;
+    }
+
+    @Override
+    long commuteBits(long bits, long delta) {
+        return (int) (bits + delta);
+    }
+
+}
@@ -0,0 +1,182 @@
+package com.concurrent.tools.mystm;
+
+import java.util.Objects;
+import java.util.function.BiConsumer;
+
+/**
+ * 支持事务的哈希表
+ *      桶的数量固定，每个桶的链表头、每个节点的next和value都是独立的TxnRef：
+ *      1、修改已有key的value只写入该节点的value，不同key之间不会冲突
+ *      2、插入新key只写入所在桶的链表头，删除只写入前一个节点的next，不同桶之间不会冲突
+ *      3、元素个数使用可交换的增量维护，插入和删除不会因为个数而冲突，只有读取个数的事务才会依赖它
+ *      put的开销是O(链表长度)个TxnRef，不需要复制整个Map
+ * @param <K>
+ * @param <V>
+ */
+public class TxnMap<K, V> {
+
+    /**
+     * 默认的桶数量
+     */
+    public static final int DEFAULT_BUCKETS = 64;
+
+    private final TxnRef<Node<K, V>>[] buckets;
+
+    private final int mask;
+
+    private final TxnInt size = new TxnInt(0);
+
+    public TxnMap() {
+        this(DEFAULT_BUCKETS);
+    }
+
+    /**
+     * @param buckets 桶的数量，会调整为2的幂，之后不会扩容，应该按预计的元素个数设置
+     */
+    public TxnMap(int buckets) {
+        if (buckets <= 0) {
+            throw new IllegalArgumentException("buckets: " + buckets);
+        }
+        int n = buckets == 1 ? 1 : Integer.highestOneBit(buckets - 1) << 1;
+        this.buckets = TxnRef.newArray(n);
+        for (int i = 0; i < n; i++) {
+            this.buckets[i] = new TxnRef<>(null);
+        }
+        this.mask = n - 1;
+    }
+
+    public V get(Object key, Txn txn) {
+        Node<K, V> node = find(key, txn);
+        return node == null ? null : txn.get(node.value);
+    }
+
+    public boolean containsKey(Object key, Txn txn) {
+        return find(key, txn) != null;
+    }
+
+    /**
+     * 插入或者更新
+     * @param key
+     * @param value
+     * @param txn
+     * @return 原来的value，不存在时返回null
+     */
+    public V put(K key, V value, Txn txn) {
+        Node<K, V> node = find(key, txn);
+        if (node != null) {
+            V old = txn.get(node.value);
+            txn.set(node.value, value);
+            return old;
+        }
+        TxnRef<Node<K, V>> bucket = bucketOf(hash(key));
+        txn.set(bucket, new Node<>(key, hash(key), value, txn.get(bucket)));
+        txn.commute(size, 1);
+        return null;
+    }
+
+    /**
+     * 不存在时才插入
+     * @param key
+     * @param value
+     * @param txn
+     * @return 已经存在的value，插入成功时返回null
+     */
+    public V putIfAbsent(K key, V value, Txn txn) {
+        Node<K, V> node = find(key, txn);
+        if (node != null) {
+            return txn.get(node.value);
+        }
+        put(key, value, txn);
+        return null;
+    }
+
+    /**
+     * 删除
+     * @param key
+     * @param txn
+     * @return 原来的value，不存在时返回null
+     */
+    public V remove(Object key, Txn txn) {
+        int hash = hash(key);
+        TxnRef<Node<K, V>> prev = bucketOf(hash);
+        for (Node<K, V> node = txn.get(prev); node != null; node = txn.get(prev)) {
+            if (node.hash == hash && Objects.equals(node.key, key)) {
+                txn.set(prev, txn.get(node.next));
+                txn.commute(size, -1);
+                return txn.get(node.value);
+            }
+            prev = node.next;
+        }
+        return null;
+    }
+
+    /**
+     * 元素个数，会读取计数器，与所有插入和删除操作冲突
+     * @param txn
+     * @return
+     */
+    public int size(Txn txn) {
+        return txn.get(size);
+    }
+
+    public boolean isEmpty(Txn txn) {
+        return size(txn) == 0;
+    }
+
+    /**
+     * 遍历所有元素，会读取所有的桶，与所有的修改操作冲突，适合在只读事务中执行
+     * @param action
+     * @param txn
+     */
+    public void forEach(BiConsumer<? super K, ? super V> action, Txn txn) {
+        for (TxnRef<Node<K, V>> bucket : buckets) {
+            for (Node<K, V> node = txn.get(bucket); node != null; node = txn.get(node.next)) {
+                action.accept(node.key, txn.get(node.value));
+            }
+        }
+    }
+
+    private Node<K, V> find(Object key, Txn txn) {
+        int hash = hash(key);
+        for (Node<K, V> node = txn.get(bucketOf(hash)); node != null; node = txn.get(node.next)) {
+            if (node.hash == hash && Objects.equals(node.key, key)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    private TxnRef<Node<K, V>> bucketOf(int hash) {
+        return buckets[hash & mask];
+    }
+
+    /**
+     * 与HashMap一样把高位扰动到低位
+     * @param key
+     * @return
+     */
+    private static int hash(Object key) {
+        int h = key == null ? 0 : key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static final class Node<K, V> {
+
+        final K key;
+
+        final int hash;
+
+        final TxnRef<V> value;
+
+        final TxnRef<Node<K, V>> next;
+
+        Node(K key, int hash, V value, Node<K, V> next) {
+            this.key = key;
+            this.hash = hash;
+            this.value = new TxnRef<>(value);
+            this.next = new TxnRef<>(next);
+        }
+
+    }
+
+}
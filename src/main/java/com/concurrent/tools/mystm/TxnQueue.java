@@ -0,0 +1,142 @@
+package com.concurrent.tools.mystm;
+
+/**
+ * 支持事务的FIFO队列
+ *      使用带哨兵节点的链表，head指向哨兵，tail指向最后一个节点，每个节点的next是独立的TxnRef：
+ *      入队只写入tail和最后一个节点的next，出队只写入head，队列非空时入队和出队不会互相冲突。
+ *      队列为空时take()、队列满时put()通过{@link Txn#retry()}阻塞，不需要轮询
+ * @param <E>
+ */
+public class TxnQueue<E> {
+
+    private final TxnRef<Node<E>> head;
+
+    private final TxnRef<Node<E>> tail;
+
+    /**
+     * 元素个数，使用可交换的增量维护
+     */
+    private final TxnInt size = new TxnInt(0);
+
+    private final int capacity;
+
+    public TxnQueue() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param capacity 容量，有界队列的入队需要读取元素个数，会与出队冲突
+     */
+    public TxnQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity: " + capacity);
+        }
+        Node<E> sentinel = new Node<>(null);
+        this.head = new TxnRef<>(sentinel);
+        this.tail = new TxnRef<>(sentinel);
+        this.capacity = capacity;
+    }
+
+    /**
+     * 入队
+     * @param e
+     * @param txn
+     * @return 队列已满时返回false
+     */
+    public boolean offer(E e, Txn txn) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        if (capacity != Integer.MAX_VALUE && txn.get(size) >= capacity) {
+            return false;
+        }
+        Node<E> node = new Node<>(e);
+        txn.set(txn.get(tail).next, node);
+        txn.set(tail, node);
+        txn.commute(size, 1);
+        return true;
+    }
+
+    /**
+     * 入队，队列已满时阻塞
+     * @param e
+     * @param txn
+     */
+    public void put(E e, Txn txn) {
+        if (!offer(e, txn)) {
+            txn.retry();
+        }
+    }
+
+    /**
+     * 出队
+     * @param txn
+     * @return 队列为空时返回null
+     */
+    public E poll(Txn txn) {
+        Node<E> first = txn.get(txn.get(head).next);
+        if (first == null) {
+            return null;
+        }
+        // 出队的节点成为新的哨兵
+        txn.set(head, first);
+        txn.commute(size, -1);
+        return first.item;
+    }
+
+    /**
+     * 出队，队列为空时阻塞
+     * @param txn
+     * @return
+     */
+    public E take(Txn txn) {
+        E e = poll(txn);
+        if (e == null) {
+            txn.retry();
+        }
+        return e;
+    }
+
+    /**
+     * 查看队首元素，不出队
+     * @param txn
+     * @return
+     */
+    public E peek(Txn txn) {
+        Node<E> first = txn.get(txn.get(head).next);
+        return first == null ? null : first.item;
+    }
+
+    /**
+     * 元素个数，会读取计数器，与所有入队和出队操作冲突
+     * @param txn
+     * @return
+     */
+    public int size(Txn txn) {
+        return txn.get(size);
+    }
+
+    public boolean isEmpty(Txn txn) {
+        return peek(txn) == null;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    private static final class Node<E> {
+
+        /**
+         * 哨兵节点的item没有意义
+         */
+        final E item;
+
+        final TxnRef<Node<E>> next = new TxnRef<>(null);
+
+        Node(E item) {
+            this.item = item;
+        }
+
+    }
+
+}
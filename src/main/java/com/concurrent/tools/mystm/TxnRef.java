@@ -1,21 +1,33 @@
 package com.concurrent.tools.mystm;
 
-import lombok.Data;
+import java.util.function.UnaryOperator;
 
 /**
  * 支持事务的引用
+ *      数据直接保存在TxnRef中，版本号保存在版本锁中，提交时不需要为每个写入创建新的VersionedRef。
+ *      基本类型的数据请使用{@link TxnLong}、{@link TxnInt}、{@link TxnDouble}，避免装箱
  * @param <T>
  */
-@Data
-public class TxnRef<T> {
+public class TxnRef<T> extends AbstractTxnRef {
 
     /**
-     * 当前数据，带版本号
+     * 当前数据，版本号见版本锁
      */
-    private volatile VersionedRef<T> curRef;
+    private volatile T value;
 
     public TxnRef(T value) {
-        this.curRef = new VersionedRef<>(value, 0L);
+        this.value = value;
+    }
+
+    /**
+     * 不能直接创建带泛型的数组，在这里把原始类型的数组转换成带泛型的类型
+     * @param length
+     * @param <T>
+     * @return 元素都是null
+     */
+    @SuppressWarnings("unchecked")
+    static <T> TxnRef<T>[] newArray(int length) {
+        return (TxnRef<T>[]) new TxnRef<?>[length];
     }
 
     /**
@@ -36,4 +48,42 @@ public class TxnRef<T> {
         txn.set(this, value);
     }
 
+    /**
+     * 在当前事务中执行可交换操作，延迟到提交时才作用在最新的数据上，不读取数据也不加入读集
+     *      function会在提交时持有锁的情况下执行，必须是没有副作用的快速操作
+     * @param function
+     * @param txn
+     */
+    public void commute(UnaryOperator<T> function, Txn txn) {
+        txn.commute(this, function);
+    }
+
+    /**
+     * 获取当前数据及其版本号的快照，不在事务中
+     * @return
+     */
+    public VersionedRef<T> getCurRef() {
+        while (true) {
+            long pre = getLock();
+            T cur = value;
+            if (!isLocked(pre) && pre == getLock()) {
+                return new VersionedRef<>(cur, versionOf(pre));
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    @Override
+    Object read() {
+        return value;
+    }
+
+    @Override
+    void write(Object value, long bits) {
+        // 写集中的数据都是通过setValue()等方法写入的T
+        @SuppressWarnings("unchecked")
+        T newValue = (T) value;
+        this.value = newValue;
+    }
+
 }
@@ -0,0 +1,15 @@
+package com.concurrent.tools.mystm;
+
+/**
+ * 事务调用{@link Txn#retry()}时抛出，由{@link MyStmUtils#atomic(TxnRunnable)}捕获，
+ * 阻塞到读过的数据发生变化后再重新执行
+ */
+final class TxnRetryException extends RuntimeException {
+
+    static final TxnRetryException INSTANCE = new TxnRetryException();
+
+    private TxnRetryException() {
+        super("transaction retry", null, false, false);
+    }
+
+}
@@ -0,0 +1,95 @@
+package com.concurrent.tools.mystm;
+
+/**
+ * 读写集的撤销日志
+ *      嵌套执行的事务块(例如{@link Txn#orElse(TxnRunnable, TxnRunnable)}、嵌套的atomic())中对写集的每次修改都先记录旧值，
+ *      新加入读集的数据也会记录，事务块放弃时按相反的顺序恢复，只回滚该事务块的修改。数组在事务之间复用。
+ */
+final class UndoLog {
+
+    private static final int DEFAULT_CAPACITY = 8;
+
+    AbstractTxnRef[] refs = new AbstractTxnRef[DEFAULT_CAPACITY];
+
+    Object[] values = new Object[DEFAULT_CAPACITY];
+
+    long[] bits = new long[DEFAULT_CAPACITY];
+
+    boolean[] commutes = new boolean[DEFAULT_CAPACITY];
+
+    /**
+     * 是否是新加入写集的数据，回滚时需要从写集中删除
+     */
+    boolean[] inserted = new boolean[DEFAULT_CAPACITY];
+
+    /**
+     * 是否是新加入读集的数据，只有闭合嵌套的事务块中止时才从读集中删除
+     */
+    boolean[] reads = new boolean[DEFAULT_CAPACITY];
+
+    int size;
+
+    void add(AbstractTxnRef ref, Object value, long bits, boolean commute, boolean inserted) {
+        add(ref, value, bits, commute, inserted, false);
+    }
+
+    /**
+     * 记录新加入读集的数据
+     * @param ref
+     */
+    void addRead(AbstractTxnRef ref) {
+        add(ref, null, 0L, false, true, true);
+    }
+
+    private void add(AbstractTxnRef ref, Object value, long bits, boolean commute, boolean inserted, boolean read) {
+        if (size == refs.length) {
+            grow();
+        }
+        refs[size] = ref;
+        values[size] = value;
+        this.bits[size] = bits;
+        commutes[size] = commute;
+        this.inserted[size] = inserted;
+        reads[size] = read;
+        size++;
+    }
+
+    /**
+     * 截断到指定长度
+     * @param newSize
+     */
+    void truncate(int newSize) {
+        for (int i = newSize; i < size; i++) {
+            refs[i] = null;
+            values[i] = null;
+        }
+        size = newSize;
+    }
+
+    void clear() {
+        truncate(0);
+    }
+
+    private void grow() {
+        int capacity = refs.length << 1;
+        AbstractTxnRef[] newRefs = new AbstractTxnRef[capacity];
+        Object[] newValues = new Object[capacity];
+        long[] newBits = new long[capacity];
+        boolean[] newCommutes = new boolean[capacity];
+        boolean[] newInserted = new boolean[capacity];
+        boolean[] newReads = new boolean[capacity];
+        System.arraycopy(refs, 0, newRefs, 0, size);
+        System.arraycopy(values, 0, newValues, 0, size);
+        System.arraycopy(bits, 0, newBits, 0, size);
+        System.arraycopy(commutes, 0, newCommutes, 0, size);
+        System.arraycopy(inserted, 0, newInserted, 0, size);
+        System.arraycopy(reads, 0, newReads, 0, size);
+        refs = newRefs;
+        values = newValues;
+        bits = newBits;
+        commutes = newCommutes;
+        inserted = newInserted;
+        reads = newReads;
+    }
+
+}
@@ -0,0 +1,27 @@
+package com.concurrent.tools.mystm;
+
+/**
+ * 引用的历史版本，从新到旧串成链表
+ *      只在有快照读事务时才保留，写事务提交时把被覆盖的旧数据加到链表头部
+ */
+final class VersionNode {
+
+    final Object value;
+
+    final long bits;
+
+    final long version;
+
+    /**
+     * 更旧的版本，裁剪历史时会被置为null
+     */
+    volatile VersionNode prev;
+
+    VersionNode(Object value, long bits, long version, VersionNode prev) {
+        this.value = value;
+        this.bits = bits;
+        this.version = version;
+        this.prev = prev;
+    }
+
+}